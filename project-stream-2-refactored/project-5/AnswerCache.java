@@ -0,0 +1,107 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache of encoded DNS answer sections, keyed by query type and client network.
+ *
+ * Every client in one ReplicaMapper prefix (the subnet a resolver reports through EDNS
+ * Client Subnet, or else the resolver's own address) gets the same replica, so the answer
+ * section (name pointer, type, class, TTL, address) for a prefix only has to be encoded
+ * once per mapping. The cache is a fixed, direct-mapped table of immutable entries: a
+ * lookup is one array read and a few compares, a collision simply replaces the slot, and
+ * nothing is locked or allocated on a hit. Entries remember the ReplicaMapper generation
+ * they were built in, and the TTL they carry, and count as misses once the mapping or the
+ * TTL has changed. The server answers for a single name, so the name is not part of the
+ * key.
+ */
+public class AnswerCache {
+
+    private static final int TYPE_A = 1;
+    private static final int CLASS_IN = 1;
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private volatile int ttlSeconds;
+
+    // One answer section: the records that follow the question, and how many there are.
+    static final class Entry {
+        final long prefix;
+        final int qtype;
+        final long generation;
+        final int ttlSeconds;
+        final byte[] answers;
+        final int answerCount;
+
+        Entry(long prefix, int qtype, long generation, int ttlSeconds, byte[] answers, int answerCount) {
+            this.prefix = prefix;
+            this.qtype = qtype;
+            this.generation = generation;
+            this.ttlSeconds = ttlSeconds;
+            this.answers = answers;
+            this.answerCount = answerCount;
+        }
+    }
+
+    /**
+     * @param size number of slots, rounded up to a power of two
+     */
+    public AnswerCache(int size, int ttlSeconds) {
+        int slotCount = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(slotCount);
+        this.mask = slotCount - 1;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * The answer section for an A (or ANY) question about the CDN name from a client
+     * network (a ReplicaMapper.clientPrefix), from the cache or encoded now.
+     */
+    Entry answer(long prefix, int qtype) {
+        // Read the generation before mapping: an answer can then only be tagged older than
+        // the mapping it came from, never newer.
+        long generation = ReplicaMapper.generation();
+        int ttl = ttlSeconds;
+        int slot = slot(prefix, qtype);
+        Entry entry = slots.get(slot);
+        if (entry != null && entry.prefix == prefix && entry.qtype == qtype && entry.generation == generation
+                && entry.ttlSeconds == ttl) {
+            return entry;
+        }
+        byte[] answers = encodeA(ReplicaMapper.getBestReplicaAddress(prefix), ttl);
+        entry = new Entry(prefix, qtype, generation, ttl, answers, 1);
+        slots.set(slot, entry);
+        return entry;
+    }
+
+    /**
+     * Changes the TTL of the answers handed out from now on, e.g. lowered while the replica
+     * pool is changing. Cached answers with another TTL are encoded again.
+     */
+    void setTtlSeconds(int ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    int ttlSeconds() {
+        return ttlSeconds;
+    }
+
+    // Name (pointer to the question name at offset 12), type A, class IN, TTL, address.
+    private static byte[] encodeA(byte[] address, int ttlSeconds) {
+        byte[] record = new byte[12 + address.length];
+        record[0] = (byte) 0xC0;
+        record[1] = 12;
+        record[3] = TYPE_A;
+        record[5] = CLASS_IN;
+        record[6] = (byte) (ttlSeconds >>> 24);
+        record[7] = (byte) (ttlSeconds >>> 16);
+        record[8] = (byte) (ttlSeconds >>> 8);
+        record[9] = (byte) ttlSeconds;
+        record[11] = (byte) address.length;
+        System.arraycopy(address, 0, record, 12, address.length);
+        return record;
+    }
+
+    private int slot(long prefix, int qtype) {
+        long h = (prefix ^ ((long) qtype << 48)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
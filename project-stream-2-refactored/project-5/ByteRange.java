@@ -0,0 +1,95 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One satisfiable byte range of a representation, [first, last] inclusive as in HTTP,
+ * plus parsing of Range headers and the framing of multipart/byteranges responses.
+ */
+public class ByteRange {
+
+    // More ranges than this in one request are treated as abuse and the header is ignored.
+    static final int MAX_RANGES = 16;
+
+    final long first;
+    final long last;
+
+    ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    long length() {
+        return last - first + 1;
+    }
+
+    String contentRange(long totalLength) {
+        return "bytes " + first + "-" + last + "/" + totalLength;
+    }
+
+    /**
+     * Parses a Range header against a representation of the given length.
+     * Returns null if the header should be ignored (absent, malformed, not in bytes, or too
+     * many ranges) and the full representation sent; returns an empty list if none of the
+     * ranges can be satisfied (416).
+     */
+    static List<ByteRange> parse(String header, long length) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                if (dash == 0) {
+                    // Suffix range: the last n bytes.
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                    }
+                    continue;
+                }
+                long first = Long.parseLong(spec.substring(0, dash));
+                long last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                if (first < 0 || last < first) {
+                    return null;
+                }
+                if (first < length) {
+                    ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Headers that precede one part of a multipart/byteranges body.
+     */
+    static ByteBuffer partHead(String boundary, String contentType, ByteRange range, long totalLength) {
+        StringBuilder head = new StringBuilder(128);
+        head.append("\r\n--").append(boundary).append("\r\n");
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        head.append("Content-Range: ").append(range.contentRange(totalLength)).append("\r\n\r\n");
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    static ByteBuffer closingBoundary(String boundary) {
+        return ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
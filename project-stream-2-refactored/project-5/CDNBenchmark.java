@@ -0,0 +1,331 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * CDNBenchmark load-tests a CDN replica on one machine.
+ *
+ * It starts a stand-in origin that serves /obj/<n> with a configurable object-size
+ * distribution and response latency, starts a replica in this JVM against it (or targets
+ * one already running with -target), and drives the replica with Zipf-distributed
+ * requests. After a warm-up phase it reports throughput, hit ratio and latency
+ * percentiles for the measured phase. The hit ratio is derived from the requests that
+ * reached the stand-in origin, so it is also right for an external replica, as long as
+ * that replica uses this benchmark's origin (-origin-port).
+ *
+ * The client is open-loop by default: requests are sent at -rate per second with Poisson
+ * arrivals, whether or not earlier ones have finished, and latency is measured from the
+ * moment a request was due. A saturated replica therefore shows up as growing latency
+ * instead of silently lowering the offered load. With -rate 0 the client is closed-loop:
+ * -c workers send requests back to back.
+ *
+ * Usage: java CDNBenchmark [-keys <n>] [-skew <s>] [-rate <req/s>] [-c <connections>]
+ *        [-d <seconds>] [-warmup <seconds>] [-keepalive <on|off>]
+ *        [-sizes <fixed|uniform|pareto>] [-size <bytes>] [-maxsize <bytes>]
+ *        [-latency <ms>] [-jitter <ms>] [-ttl <seconds>] [-origin-port <port>]
+ *        [-target <host:port>] [-e <jdk|vthread>] [-cache <MB>]
+ */
+public class CDNBenchmark {
+
+    // Upper bound on requests that are due but not yet finished before new ones are dropped.
+    private static final int MAX_OUTSTANDING = 100_000;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static int keys = 10_000;
+    private static double skew = 0.9;
+    private static double rate = 2000;
+    private static int connections = 64;
+    private static int durationSeconds = 30;
+    private static int warmupSeconds = 10;
+    private static boolean keepAlive = true;
+    private static String sizeDistribution = "pareto";
+    private static int meanSize = 16 * 1024;
+    private static int maxSize = 1024 * 1024;
+    private static int originLatencyMillis = 20;
+    private static int originJitterMillis = 10;
+    private static long ttlSeconds = 3600;
+    private static int originPort = 0;
+    private static String target = null;
+    private static String engine = "vthread";
+    private static long cacheMegabytes = 64;
+
+    // Counters for one phase of the run.
+    static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private static final AtomicInteger outstanding = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        // Without this the stand-in origin's header and body writes stall on delayed ACKs.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        StandInOrigin origin = new StandInOrigin(originPort, sizeDistribution, meanSize, maxSize,
+                originLatencyMillis, originJitterMillis, ttlSeconds);
+        if (target == null) {
+            int replicaPort = freePort();
+            HTTPServerCDN.CDNConfig.ORIGIN_SERVER = "localhost:" + origin.port();
+            HTTPServerCDN.CDNConfig.ENGINE = engine;
+            HTTPServerCDN.CDNConfig.CACHE_BYTES = cacheMegabytes * 1024 * 1024;
+            new HTTPServerCDN(replicaPort, HTTPServerCDN.CDNConfig.ORIGIN_SERVER).start();
+            target = "localhost:" + replicaPort;
+        }
+        System.out.printf("origin localhost:%d (%s sizes, mean %d B, latency %d+-%d ms), replica %s%n",
+                origin.port(), sizeDistribution, meanSize, originLatencyMillis, originJitterMillis, target);
+        System.out.printf("%d keys (Zipf %.2f), %s, %d connections, keep-alive %s%n", keys, skew,
+                rate > 0 ? String.format("open loop at %.0f req/s", rate) : "closed loop", connections,
+                keepAlive ? "on" : "off");
+
+        OriginClient client = new OriginClient(target, connections, 2000, 30_000, 30_000, 60_000);
+        Map<String, String> headers = keepAlive ? Collections.emptyMap() : Map.of("Connection", "close");
+        CachePolicyBenchmark.ZipfGenerator zipf = new CachePolicyBenchmark.ZipfGenerator(keys, skew);
+
+        if (warmupSeconds > 0) {
+            run("warm-up", warmupSeconds, client, headers, zipf, origin);
+        }
+        run("measured", durationSeconds, client, headers, zipf, origin);
+        System.exit(0);
+    }
+
+    private static void run(String phase, int seconds, OriginClient client, Map<String, String> headers,
+            CachePolicyBenchmark.ZipfGenerator zipf, StandInOrigin origin) throws InterruptedException {
+        Stats phaseStats = new Stats();
+        long originRequestsBefore = origin.requests.sum();
+        long originBytesBefore = origin.bytes.sum();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService requesters = Executors.newVirtualThreadPerTaskExecutor();
+        if (rate > 0) {
+            // Open loop: one generator thread decides when each request is due.
+            Random random = new Random(42);
+            double meanGapNanos = 1e9 / rate;
+            double due = start;
+            while (due < end) {
+                long dueNanos = (long) due;
+                long wait = dueNanos - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                String path = "/obj/" + zipf.next(random);
+                if (outstanding.incrementAndGet() > MAX_OUTSTANDING) {
+                    outstanding.decrementAndGet();
+                    phaseStats.dropped.increment();
+                } else {
+                    requesters.execute(() -> {
+                        try {
+                            request(client, path, headers, dueNanos, phaseStats);
+                        } finally {
+                            outstanding.decrementAndGet();
+                        }
+                    });
+                }
+                due += -Math.log(1 - random.nextDouble()) * meanGapNanos;
+            }
+        } else {
+            // Closed loop: each worker sends its next request when the previous one is done.
+            for (int i = 0; i < connections; i++) {
+                requesters.execute(() -> {
+                    Random random = ThreadLocalRandom.current();
+                    long now;
+                    while ((now = System.nanoTime()) < end) {
+                        request(client, "/obj/" + zipf.next(random), headers, now, phaseStats);
+                    }
+                });
+            }
+        }
+        requesters.shutdown();
+        requesters.awaitTermination(1, TimeUnit.MINUTES);
+        report(phase, (System.nanoTime() - start) / 1e9, phaseStats,
+                origin.requests.sum() - originRequestsBefore, origin.bytes.sum() - originBytesBefore);
+    }
+
+    private static void request(OriginClient client, String path, Map<String, String> headers, long dueNanos,
+            Stats phaseStats) {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long bytes = 0;
+        boolean ok;
+        try (OriginClient.Response response = client.get(path, headers)) {
+            int n;
+            while ((n = response.read(buffer)) != -1) {
+                bytes += n;
+                buffer.clear();
+            }
+            ok = response.status == 200;
+        } catch (IOException e) {
+            ok = false;
+        }
+        phaseStats.latency.recordNanos(System.nanoTime() - dueNanos);
+        phaseStats.requests.increment();
+        phaseStats.bytes.add(bytes);
+        if (!ok) {
+            phaseStats.errors.increment();
+        }
+    }
+
+    private static void report(String phase, double seconds, Stats phaseStats, long originRequests,
+            long originBytes) {
+        LatencyHistogram.Snapshot latency = phaseStats.latency.snapshot();
+        long requests = phaseStats.requests.sum();
+        long bytes = phaseStats.bytes.sum();
+        System.out.printf("%n%s: %.1f s%n", phase, seconds);
+        System.out.printf("  requests   %d (%d errors, %d dropped)%n", requests, phaseStats.errors.sum(),
+                phaseStats.dropped.sum());
+        System.out.printf("  throughput %.0f req/s, %.1f MB/s%n", requests / seconds, bytes / seconds / 1e6);
+        System.out.printf("  hit ratio  %.2f%% of requests, %.2f%% of bytes (%d origin fetches)%n",
+                requests == 0 ? 0 : 100.0 * Math.max(0, requests - originRequests) / requests,
+                bytes == 0 ? 0 : 100.0 * Math.max(0, bytes - originBytes) / bytes, originRequests);
+        System.out.printf("  latency ms p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  mean %.2f%n",
+                latency.valueAtQuantile(0.5) / 1e3, latency.valueAtQuantile(0.9) / 1e3,
+                latency.valueAtQuantile(0.99) / 1e3, latency.valueAtQuantile(0.999) / 1e3,
+                latency.valueAtQuantile(1) / 1e3, latency.count == 0 ? 0 : latency.sumMicros / 1e3 / latency.count);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-keys": keys = Integer.parseInt(value); break;
+                case "-skew": skew = Double.parseDouble(value); break;
+                case "-rate": rate = Double.parseDouble(value); break;
+                case "-c": connections = Integer.parseInt(value); break;
+                case "-d": durationSeconds = Integer.parseInt(value); break;
+                case "-warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "-keepalive": keepAlive = !"off".equals(value); break;
+                case "-sizes": sizeDistribution = value; break;
+                case "-size": meanSize = Integer.parseInt(value); break;
+                case "-maxsize": maxSize = Integer.parseInt(value); break;
+                case "-latency": originLatencyMillis = Integer.parseInt(value); break;
+                case "-jitter": originJitterMillis = Integer.parseInt(value); break;
+                case "-ttl": ttlSeconds = Long.parseLong(value); break;
+                case "-origin-port": originPort = Integer.parseInt(value); break;
+                case "-target": target = value; break;
+                case "-e": engine = value; break;
+                case "-cache": cacheMegabytes = Long.parseLong(value); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (!("fixed".equals(sizeDistribution) || "uniform".equals(sizeDistribution)
+                || "pareto".equals(sizeDistribution)) || connections < 1 || keys < 1) {
+            System.err.println("Invalid arguments.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Stand-in origin: every /obj/<n> exists, with a size drawn once per key from the
+     * configured distribution, and every response is delayed by the configured latency.
+     * Responses carry an ETag and max-age, like a static-content origin.
+     */
+    static final class StandInOrigin {
+        private static final double PARETO_SHAPE = 1.5;
+
+        private final HttpServer server;
+        private final byte[] content;
+        private final String distribution;
+        private final int meanSize;
+        private final int maxSize;
+        private final int latencyMillis;
+        private final int jitterMillis;
+        private final long ttlSeconds;
+        final LongAdder requests = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        StandInOrigin(int port, String distribution, int meanSize, int maxSize, int latencyMillis,
+                int jitterMillis, long ttlSeconds) throws IOException {
+            this.distribution = distribution;
+            this.meanSize = meanSize;
+            this.maxSize = maxSize;
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.ttlSeconds = ttlSeconds;
+            this.content = new byte[maxSize];
+            new Random(7).nextBytes(content);
+            server = HttpServer.create(new InetSocketAddress(port), 1024);
+            server.createContext("/obj/", exchange -> {
+                requests.increment();
+                String path = exchange.getRequestURI().getPath();
+                int key;
+                try {
+                    key = Integer.parseInt(path.substring("/obj/".length()));
+                } catch (NumberFormatException e) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                delay();
+                int size = objectSize(key);
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=" + this.ttlSeconds);
+                exchange.getResponseHeaders().set("ETag", "\"" + key + "-" + size + "\"");
+                exchange.sendResponseHeaders(200, size);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(content, 0, size);
+                }
+                bytes.add(size);
+            });
+            server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            server.start();
+        }
+
+        int port() {
+            return server.getAddress().getPort();
+        }
+
+        // Deterministic per-key size, so every fetch of a key returns the same body.
+        int objectSize(int key) {
+            Random random = new Random(key * 0x9E3779B97F4A7C15L);
+            double size;
+            switch (distribution) {
+                case "fixed":
+                    size = meanSize;
+                    break;
+                case "uniform":
+                    size = 1 + random.nextDouble() * (2.0 * meanSize - 1);
+                    break;
+                default:
+                    // Heavy-tailed, as web object sizes are: many small objects, a few large ones.
+                    double scale = meanSize * (PARETO_SHAPE - 1) / PARETO_SHAPE;
+                    size = scale / Math.pow(1 - random.nextDouble(), 1 / PARETO_SHAPE);
+                    break;
+            }
+            return (int) Math.max(1, Math.min(maxSize, size));
+        }
+
+        private void delay() {
+            long millis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextInt(jitterMillis + 1) : 0);
+            if (millis > 0) {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * CachePolicyBenchmark replays synthetic request traces against ContentCache with each
+ * eviction policy and prints the hit ratio (by requests and by bytes) per trace.
+ *
+ * Traces:
+ *   zipf  - Zipf-distributed requests over the key space (skew 0.9).
+ *   scan  - the same Zipf stream with a crawler interleaved, which requests every key of a
+ *           long tail exactly once (half of all requests).
+ *   loop  - a cyclic walk over slightly more objects than fit in the cache.
+ *
+ * Usage: java CachePolicyBenchmark [keys] [requests] [cachePercent]
+ */
+public class CachePolicyBenchmark {
+
+    private static final double ZIPF_SKEW = 0.9;
+    private static final int MAX_OBJECT_BYTES = 16 * 1024;
+    // One shared body: the cache only looks at the entry weights.
+    private static final ByteBuffer BODY = ByteBuffer.allocateDirect(MAX_OBJECT_BYTES);
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+        double cachePercent = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+
+        long keySpaceBytes = 0;
+        for (int i = 0; i < keys; i++) {
+            keySpaceBytes += objectSize("/obj/" + i);
+        }
+        long cacheBytes = (long) (keySpaceBytes * cachePercent / 100);
+        System.out.printf("%d keys, %d requests, cache %d KB (%.1f%% of the key space)%n",
+                keys, requests, cacheBytes / 1024, cachePercent);
+        System.out.printf("%-6s %-8s %10s %10s %10s%n", "trace", "policy", "hit %", "byte hit %", "ms");
+
+        for (String trace : new String[] { "zipf", "scan", "loop" }) {
+            String[] requestKeys = trace(trace, keys, requests, cacheBytes);
+            run(trace, "lru", requestKeys, cacheBytes, bytes -> new ContentCache.LruPolicy());
+            run(trace, "tinylfu", requestKeys, cacheBytes, WTinyLfuPolicy::new);
+        }
+    }
+
+    private static void run(String trace, String name, String[] requestKeys, long cacheBytes,
+            Function<Long, ContentCache.EvictionPolicy> policy) {
+        ContentCache cache = new ContentCache(cacheBytes, policy.apply(cacheBytes));
+        long hits = 0;
+        long hitBytes = 0;
+        long totalBytes = 0;
+        long startNanos = System.nanoTime();
+        for (String key : requestKeys) {
+            int size = objectSize(key);
+            totalBytes += size;
+            if (cache.get(key) != null) {
+                hits++;
+                hitBytes += size;
+            } else {
+                cache.put(key, content(key, size));
+            }
+        }
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        System.out.printf("%-6s %-8s %10.2f %10.2f %10d%n", trace, name,
+                100.0 * hits / requestKeys.length, 100.0 * hitBytes / totalBytes, elapsedMillis);
+    }
+
+    private static String[] trace(String kind, int keys, int requests, long cacheBytes) {
+        Random random = new Random(42);
+        String[] trace = new String[requests];
+        switch (kind) {
+            case "zipf": {
+                ZipfGenerator zipf = new ZipfGenerator(keys, ZIPF_SKEW);
+                for (int i = 0; i < requests; i++) {
+                    trace[i] = "/obj/" + zipf.next(random);
+                }
+                break;
+            }
+            case "scan": {
+                ZipfGenerator zipf = new ZipfGenerator(keys, ZIPF_SKEW);
+                long crawled = 0;
+                for (int i = 0; i < requests; i++) {
+                    trace[i] = random.nextBoolean() ? "/obj/" + zipf.next(random) : "/tail/" + crawled++;
+                }
+                break;
+            }
+            default: {
+                // Average object is MAX_OBJECT_BYTES / 2; loop over 1.2x what fits.
+                long loopKeys = Math.max(1, cacheBytes * 12 / 10 / (MAX_OBJECT_BYTES / 2));
+                for (int i = 0; i < requests; i++) {
+                    trace[i] = "/obj/" + (i % loopKeys);
+                }
+                break;
+            }
+        }
+        return trace;
+    }
+
+    // Deterministic per-key object size between 1 byte and MAX_OBJECT_BYTES.
+    private static int objectSize(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return 1 + ((h ^ (h >>> 16)) & (MAX_OBJECT_BYTES - 1));
+    }
+
+    private static HTTPServerCDN.CachedContent content(String key, int size) {
+        ByteBuffer body = BODY.duplicate();
+        body.limit(size);
+        return new HTTPServerCDN.CachedContent(key, null, new ByteBuffer[] { body }, "\"bench\"", 0);
+    }
+
+    // Samples ranks 0..n-1 with probability proportional to 1 / (rank + 1)^skew.
+    static final class ZipfGenerator {
+        private final double[] cumulative;
+
+        ZipfGenerator(int n, double skew) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1.0 / Math.pow(i + 1, skew);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            double u = random.nextDouble();
+            int lo = 0;
+            int hi = cumulative.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warm start for a replica.
+ *
+ * The hottest keys of the memory cache are written, with their hit counts, to a snapshot
+ * file periodically and at shutdown. On startup the snapshot is read back and its top
+ * entries are loaded again with bounded concurrency, so a restarted replica does not send
+ * its whole working set to the origin at once.
+ */
+public class CacheWarmer {
+
+    private final ContentCache cache;
+    private final Path snapshotFile;
+    private final int snapshotKeys;
+    private final ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cache-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Loads one path into the cache; returns false if it could not be loaded.
+    interface Loader {
+        boolean load(String path, long hits) throws IOException;
+    }
+
+    // A path and its hit count when the snapshot was taken.
+    static class HotKey {
+        final String path;
+        final long hits;
+
+        HotKey(String path, long hits) {
+            this.path = path;
+            this.hits = hits;
+        }
+    }
+
+    public CacheWarmer(ContentCache cache, Path snapshotFile, int snapshotKeys) {
+        this.cache = cache;
+        this.snapshotFile = snapshotFile;
+        this.snapshotKeys = snapshotKeys;
+    }
+
+    public void startSnapshots(long intervalSeconds) {
+        snapshotter.scheduleWithFixedDelay(this::snapshotQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Snapshot format: one line per key, hottest first, "hits<TAB>path", with the path
+     * escaped as in the DiskCache index so a tab or line break in it cannot tear the line.
+     * Written to a temporary file and moved into place, so a crash never leaves a torn
+     * snapshot. An empty cache does not overwrite the previous snapshot.
+     */
+    public void snapshotQuietly() {
+        List<Map.Entry<String, Long>> hottest = cache.hottest(snapshotKeys);
+        if (hottest.isEmpty()) {
+            return;
+        }
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : hottest) {
+                    out.write(entry.getValue() + "\t" + DiskCache.escape(entry.getKey()));
+                    out.newLine();
+                }
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Cache snapshot write failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the snapshot, hottest first. A missing snapshot is an empty one.
+     */
+    public List<HotKey> load() throws IOException {
+        List<HotKey> keys = new ArrayList<>();
+        if (!Files.exists(snapshotFile)) {
+            return keys;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 2);
+                if (fields.length == 2) {
+                    try {
+                        keys.add(new HotKey(DiskCache.unescape(fields[1]), Long.parseLong(fields[0])));
+                    } catch (IllegalArgumentException e) {
+                        // skip a damaged line
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Loads up to limit keys, hottest first, with at most concurrency loads in flight.
+     * Gives up on whatever is still outstanding after timeoutMillis. Returns the number of
+     * keys that were loaded.
+     */
+    public int prewarm(List<HotKey> keys, int limit, int concurrency, long timeoutMillis, Loader loader) {
+        AtomicInteger loaded = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "cache-prewarm");
+            t.setDaemon(true);
+            return t;
+        });
+        for (HotKey key : keys.subList(0, Math.min(limit, keys.size()))) {
+            workers.execute(() -> {
+                try {
+                    if (loader.load(key.path, key.hits)) {
+                        loaded.incrementAndGet();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Prewarm failed for " + key.path + ": " + e.getMessage());
+                }
+            });
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
+                System.out.println("Prewarm timed out, continuing with a partly warm cache");
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        return loaded.get();
+    }
+}
@@ -0,0 +1,303 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent cache of replica content, bounded by the total size of the cached bodies.
+ *
+ * Reads never lock: a hit is a ConcurrentHashMap lookup plus an entry-local hit counter.
+ * The access is recorded in one of several striped, lossy ring buffers and replayed into
+ * the eviction policy later by whichever thread holds the eviction lock. Inserts, removals
+ * and eviction are serialized by that lock, which is never held during an origin fetch.
+ */
+public class ContentCache {
+
+    // Ring buffer size per stripe (power of two) and the fill level that triggers a drain.
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    private final ConcurrentHashMap<String, HTTPServerCDN.CachedContent> entries = new ConcurrentHashMap<>();
+    private final long maxBytes;
+    private final AtomicLong currentBytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final EvictionPolicy policy;
+    private final ReadBuffer[] readBuffers;
+
+    public ContentCache(long maxBytes, EvictionPolicy policy) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        this.readBuffers = new ReadBuffer[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    /**
+     * Returns the cached entry for the key and records the hit, or null on a miss.
+     */
+    public HTTPServerCDN.CachedContent get(String key) {
+        HTTPServerCDN.CachedContent cached = entries.get(key);
+        if (cached != null) {
+            cached.hitNo.increment();
+            recordAccess(key);
+        }
+        return cached;
+    }
+
+    /**
+     * Returns the cached entry without counting a hit, or null.
+     */
+    public HTTPServerCDN.CachedContent peek(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Counts a hit on an entry obtained without get(), e.g. by waiting on another request's
+     * origin fetch, so that the eviction policy sees it too.
+     */
+    public void recordHit(String key, HTTPServerCDN.CachedContent content) {
+        content.hitNo.increment();
+        recordAccess(key);
+    }
+
+    /**
+     * Counts hits an entry had before this replica served it, e.g. the owner's count of a
+     * prewarmed entry, so that the eviction policy can admit it like a hot one.
+     */
+    public void recordHits(String key, HTTPServerCDN.CachedContent content, long hits) {
+        content.hitNo.add(hits);
+        evictionLock.lock();
+        try {
+            if (entries.get(key) == content) {
+                policy.onHits(key, hits);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts or replaces an entry, evicting others until the cache fits its byte budget.
+     * A replaced entry keeps its place in the eviction order. Entries larger than the whole
+     * budget are not cached.
+     */
+    public void put(String key, HTTPServerCDN.CachedContent content) {
+        long weight = content.weight();
+        if (weight > maxBytes) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            HTTPServerCDN.CachedContent previous = entries.put(key, content);
+            currentBytes.addAndGet(weight - (previous != null ? previous.weight() : 0));
+            if (previous != null) {
+                policy.onUpdate(key, weight);
+            } else {
+                policy.onInsert(key, weight);
+                // A new entry has one hit from its constructor; any more were had elsewhere.
+                long hits = content.hitNo.sum() - 1;
+                if (hits > 0) {
+                    policy.onHits(key, hits);
+                }
+            }
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public void remove(String key) {
+        evictionLock.lock();
+        try {
+            HTTPServerCDN.CachedContent removed = entries.remove(key);
+            if (removed != null) {
+                currentBytes.addAndGet(-removed.weight());
+                policy.onRemove(key);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns up to limit keys with their hit counts, most hit first. Walks the whole cache
+     * without locking, so the result is only approximately consistent.
+     */
+    public List<Map.Entry<String, Long>> hottest(int limit) {
+        PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<String, HTTPServerCDN.CachedContent> entry : entries.entrySet()) {
+            long hits = entry.getValue().hitNo.sum();
+            if (top.size() < limit) {
+                top.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), hits));
+            } else if (limit > 0 && hits > top.peek().getValue()) {
+                top.poll();
+                top.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), hits));
+            }
+        }
+        List<Map.Entry<String, Long>> hottest = new ArrayList<>(top);
+        hottest.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+        return hottest;
+    }
+
+    public long sizeInBytes() {
+        return currentBytes.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    // Caller holds the eviction lock.
+    private void evict() {
+        while (currentBytes.get() > maxBytes) {
+            String victim = policy.victim();
+            if (victim == null) {
+                break;
+            }
+            policy.onRemove(victim);
+            HTTPServerCDN.CachedContent removed = entries.remove(victim);
+            if (removed != null) {
+                currentBytes.addAndGet(-removed.weight());
+            }
+        }
+    }
+
+    private void recordAccess(String key) {
+        ReadBuffer buffer = readBuffers[(int) Thread.currentThread().threadId() & (readBuffers.length - 1)];
+        if (buffer.offer(key) && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // Caller holds the eviction lock.
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            buffer.drainTo(policy);
+        }
+    }
+
+    /**
+     * A bounded multi-producer ring buffer of accessed keys. Producers drop the access
+     * instead of waiting when the buffer is full or contended; the policy only needs an
+     * approximate picture of recency. Drained by a single consumer under the eviction lock.
+     */
+    static final class ReadBuffer {
+        private final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writeCount = new AtomicLong();
+        private volatile long readCount;
+
+        /**
+         * Returns true when the buffer has filled up enough that it should be drained.
+         */
+        boolean offer(String key) {
+            long head = readCount;
+            long tail = writeCount.get();
+            long size = tail - head;
+            if (size >= READ_BUFFER_SIZE) {
+                return true;
+            }
+            if (writeCount.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) (tail & READ_BUFFER_MASK), key);
+                return size + 1 >= DRAIN_THRESHOLD;
+            }
+            return false;
+        }
+
+        void drainTo(EvictionPolicy policy) {
+            long head = readCount;
+            long tail = writeCount.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & READ_BUFFER_MASK);
+                String key = slots.get(index);
+                if (key == null) {
+                    break; // producer claimed the slot but has not published yet
+                }
+                slots.lazySet(index, null);
+                policy.onAccess(key);
+            }
+            readCount = head;
+        }
+    }
+
+    /**
+     * Decides which entry to evict. Called only while the eviction lock is held, so
+     * implementations need no synchronization of their own.
+     */
+    interface EvictionPolicy {
+        void onInsert(String key, long weight);
+
+        void onAccess(String key);
+
+        /**
+         * The entry of a tracked key was replaced, e.g. by a refresh. Its place in the
+         * eviction order should not change, only its weight.
+         */
+        void onUpdate(String key, long weight);
+
+        /**
+         * Hits a key had before it was inserted. Policies that do not estimate access
+         * frequency ignore them.
+         */
+        default void onHits(String key, long hits) {
+        }
+
+        void onRemove(String key);
+
+        /**
+         * Returns the key that should be evicted next, or null if nothing is tracked.
+         */
+        String victim();
+    }
+
+    // Least-recently-used ordering.
+    static class LruPolicy implements EvictionPolicy {
+        private final LinkedHashMap<String, Long> order = new LinkedHashMap<>(16, 0.75f, true);
+
+        @Override
+        public void onInsert(String key, long weight) {
+            order.put(key, weight);
+        }
+
+        @Override
+        public void onAccess(String key) {
+            order.get(key);
+        }
+
+        // Access order cannot change a weight in place: a replaced entry counts as used.
+        @Override
+        public void onUpdate(String key, long weight) {
+            order.put(key, weight);
+        }
+
+        @Override
+        public void onRemove(String key) {
+            order.remove(key);
+        }
+
+        @Override
+        public String victim() {
+            Iterator<String> it = order.keySet().iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+    }
+}
@@ -0,0 +1,801 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DNSBenchmark exercises DNSCodec and DNSServer.answer() without a resolver.
+ *
+ * Modes:
+ *   fuzz        - answers random queries: valid ones (the CDN name in mixed case,
+ *                 subdomains, foreign names, other types, EDNS with and without options
+ *                 and Client Subnet, compressed additional records) and mutated ones
+ *                 (flipped bytes, truncation, garbage, bogus counts). Every response must
+ *                 be a well-formed message for the same ID, and valid queries must get
+ *                 the RCODE, replica and echoed Client Subnet a straightforward
+ *                 String-based reference expects. Each message is answered as over TCP
+ *                 and as over UDP, sometimes with a small UDP limit: the UDP response
+ *                 must be the TCP one, or, with TC set, cut back to header, question and
+ *                 OPT record. Exits with status 1 on failures.
+ *   selection   - simulates client networks with fixed true RTTs to each replica and
+ *                 feeds the RTT of every answer back into a ReplicaSelector, printing
+ *                 per round how many networks get their fastest replica and the mean
+ *                 RTT served, next to the hash-only and the ideal mapping.
+ *   hashing     - maps random client networks to replicas without measurements and
+ *                 shows how many move when a replica joins or leaves, and how evenly
+ *                 they spread, for the old modulo mapping, a virtual-node ring and the
+ *                 selector's rendezvous hashing; then how saturation (load reports)
+ *                 bounds the busiest replica when network popularity is skewed.
+ *   geo         - builds a PrefixTrie from random IPv4 and IPv6 networks, checks its
+ *                 longest-prefix matches against a linear scan, and times lookups.
+ *   throughput  - answers one query over and over in-process on each thread, then
+ *                 drives a DNSServer on a local port with pipelined clients, over UDP
+ *                 and over TCP (one connection per client), and prints queries per
+ *                 second for each.
+ *
+ * Usage: java DNSBenchmark fuzz [iterations] [seed]
+ *        java DNSBenchmark selection [networks] [rounds] [explorationRate]
+ *        java DNSBenchmark hashing [networks] [replicas]
+ *        java DNSBenchmark geo [networks] [lookups]
+ *        java DNSBenchmark throughput [seconds] [serverThreads] [clientThreads]
+ */
+public class DNSBenchmark {
+
+    private static final String CDN_NAME = "cdn.example.com";
+    private static final String FUZZ_CLIENT = "192.0.2.10";
+    private static final int CLIENT_WINDOW = 32;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "fuzz";
+        if ("fuzz".equals(mode)) {
+            int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+            long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+            System.exit(fuzz(iterations, seed) ? 0 : 1);
+        } else if ("selection".equals(mode)) {
+            int networks = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+            int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+            double exploration = args.length > 3 ? Double.parseDouble(args[3]) : ReplicaSelector.DEFAULT_EXPLORATION_RATE;
+            selection(networks, rounds, exploration);
+        } else if ("hashing".equals(mode)) {
+            int networks = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+            int replicas = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+            hashing(networks, replicas);
+        } else if ("geo".equals(mode)) {
+            int networks = args.length > 1 ? Integer.parseInt(args[1]) : 500_000;
+            int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 20_000_000;
+            System.exit(geo(networks, lookups) ? 0 : 1);
+        } else if ("throughput".equals(mode)) {
+            int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+            int serverThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            int clientThreads = args.length > 3 ? Integer.parseInt(args[3]) : serverThreads;
+            inProcessThroughput(seconds, serverThreads);
+            int port = startServer(serverThreads);
+            udpThroughput(seconds, port, serverThreads, clientThreads);
+            tcpThroughput(seconds, port, clientThreads);
+            System.exit(0);
+        } else {
+            System.err.println("Usage: java DNSBenchmark fuzz [iterations] [seed] | selection [networks] [rounds] [explorationRate]"
+                    + " | hashing [networks] [replicas] | geo [networks] [lookups] | throughput [seconds] [serverThreads] [clientThreads]");
+            System.exit(1);
+        }
+    }
+
+    // ---- fuzzing ----
+
+    private static boolean fuzz(int iterations, long seed) throws IOException {
+        DNSServer server = new DNSServer(0, CDN_NAME);
+        DNSCodec.Query query = new DNSCodec.Query();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DNSServer.MAX_UDP_PAYLOAD);
+        InetAddress client = InetAddress.getByName(FUZZ_CLIENT);
+        Random random = new Random(seed);
+        int failures = 0;
+        long dropped = 0;
+        long truncated = 0;
+        long[] rcodes = new long[32];
+        for (int i = 0; i < iterations && failures < 10; i++) {
+            Generated generated = generate(random);
+            byte[] message = generated.bytes;
+            boolean mutated = random.nextInt(3) == 0;
+            if (mutated) {
+                message = mutate(message, random);
+            }
+            // Mostly the real limit, which no response here comes near; sometimes one that
+            // forces truncation.
+            int maxUdpLength = random.nextInt(4) == 0 ? DNSCodec.HEADER_LENGTH + random.nextInt(600)
+                    : DNSServer.DNSConfig.UDP_PAYLOAD_SIZE;
+            String problem;
+            try {
+                byte[] response = answer(server, buffer, message, client, query, 0);
+                if (response == null) {
+                    dropped++;
+                    problem = mutated || message.length < DNSCodec.HEADER_LENGTH ? null : "valid query dropped";
+                } else {
+                    problem = checkResponse(message, response);
+                    if (problem == null) {
+                        int rcode = rcode(response);
+                        rcodes[rcode]++;
+                        if (!mutated) {
+                            problem = checkExpected(generated, response, rcode);
+                        }
+                    }
+                    if (problem == null) {
+                        byte[] udpResponse = answer(server, buffer, message, client, query, maxUdpLength);
+                        problem = udpResponse == null ? "dropped over UDP only"
+                                : checkTruncation(message, response, udpResponse, maxUdpLength);
+                        truncated += udpResponse != null && (udpResponse[2] & 0x02) != 0 ? 1 : 0;
+                    }
+                }
+            } catch (RuntimeException e) {
+                problem = "threw " + e;
+            }
+            if (problem != null) {
+                failures++;
+                System.out.println("FAIL (" + problem + ") for " + hex(message));
+            }
+        }
+        System.out.printf("%d messages, %d dropped, responses by RCODE:", iterations, dropped);
+        for (int rcode = 0; rcode < rcodes.length; rcode++) {
+            if (rcodes[rcode] > 0) {
+                System.out.printf(" %d=%d", rcode, rcodes[rcode]);
+            }
+        }
+        System.out.printf(", %d truncated over UDP%n", truncated);
+        System.out.println(failures == 0 ? "fuzz: OK" : "fuzz: " + failures + " failures");
+        return failures == 0;
+    }
+
+    // Answers the message with the given UDP limit (0: as over TCP); null if dropped.
+    private static byte[] answer(DNSServer server, ByteBuffer buffer, byte[] message, InetAddress client,
+            DNSCodec.Query query, int maxUdpLength) {
+        buffer.clear();
+        buffer.put(message, 0, Math.min(message.length, buffer.capacity())).flip();
+        if (!server.answer(buffer, client, query, maxUdpLength)) {
+            return null;
+        }
+        byte[] response = new byte[buffer.remaining()];
+        buffer.get(buffer.position(), response);
+        return response;
+    }
+
+    /**
+     * The UDP response must be the full (TCP) one if that fits, and otherwise the full one
+     * without its answers and with TC set. Clients take at least 512 bytes, or less if the
+     * server's own limit is lower.
+     */
+    private static String checkTruncation(byte[] request, byte[] full, byte[] udp, int maxUdpLength) {
+        if ((full[2] & 0x02) != 0) {
+            return "TC set over TCP";
+        }
+        if ((udp[2] & 0x02) == 0) {
+            if (!Arrays.equals(full, udp)) {
+                return "UDP response differs from the TCP one";
+            }
+            return udp.length <= maxUdpLength ? null : "UDP response of " + udp.length + " bytes not truncated";
+        }
+        if (full.length <= Math.min(DNSServer.CLASSIC_UDP_LIMIT, maxUdpLength)) {
+            return "truncated although the response fits";
+        }
+        // Expected: the full response without the answer records between question and OPT.
+        ByteBuffer message = ByteBuffer.wrap(full);
+        int offset = DNSCodec.HEADER_LENGTH;
+        for (int i = 0; i < (message.getShort(4) & 0xFFFF); i++) {
+            offset = DNSCodec.skipName(message, offset, full.length) + 4;
+        }
+        int questionEnd = offset;
+        for (int i = 0; i < (message.getShort(6) & 0xFFFF); i++) {
+            offset = DNSCodec.skipRecord(message, offset, full.length);
+        }
+        byte[] expected = new byte[questionEnd + full.length - offset];
+        System.arraycopy(full, 0, expected, 0, questionEnd);
+        System.arraycopy(full, offset, expected, questionEnd, full.length - offset);
+        expected[2] |= 0x02;
+        expected[6] = 0;
+        expected[7] = 0;
+        return Arrays.equals(udp, expected) ? null : "truncated response is not the question and OPT record of the full one";
+    }
+
+    // A generated query and what the reference expects for it.
+    static final class Generated {
+        byte[] bytes;
+        String name;
+        int qtype;
+        int ednsVersion = -1; // -1: no OPT record
+        // EDNS Client Subnet sent, if subnetAddress is not null: the address zero-filled
+        // past the source prefix.
+        int subnetFamily;
+        int subnetSource;
+        byte[] subnetAddress;
+    }
+
+    private static Generated generate(Random random) {
+        Generated g = new Generated();
+        switch (random.nextInt(5)) {
+            case 0:
+                g.name = randomCase(CDN_NAME, random);
+                break;
+            case 1:
+                g.name = randomLabel(random) + "." + randomCase(CDN_NAME, random);
+                break;
+            case 2:
+                g.name = "x" + CDN_NAME; // same suffix, not a label boundary
+                break;
+            case 3:
+                g.name = "example.com";
+                break;
+            default:
+                g.name = randomLabel(random) + "." + randomLabel(random);
+                break;
+        }
+        int[] types = { 1, 1, 1, 28, 255, 16, random.nextInt(65536) };
+        g.qtype = types[random.nextInt(types.length)];
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        out.putShort((short) random.nextInt(65536));
+        out.putShort((short) (random.nextBoolean() ? 0x0100 : 0x0000));
+        boolean edns = random.nextBoolean();
+        boolean extraRecord = random.nextInt(4) == 0;
+        out.putShort((short) 1).putShort((short) 0).putShort((short) 0);
+        out.putShort((short) ((edns ? 1 : 0) + (extraRecord ? 1 : 0)));
+        for (String label : g.name.split("\\.")) {
+            out.put((byte) label.length()).put(label.getBytes());
+        }
+        out.put((byte) 0).putShort((short) g.qtype).putShort((short) 1);
+        if (extraRecord) {
+            // A record whose name is compressed against the question.
+            out.putShort((short) 0xC00C).putShort((short) 16).putShort((short) 1).putInt(0).putShort((short) 3);
+            out.put((byte) 2).put((byte) 'h').put((byte) 'i');
+        }
+        if (edns) {
+            g.ednsVersion = random.nextInt(4) == 0 ? 1 : 0;
+            out.put((byte) 0).putShort((short) DNSCodec.TYPE_OPT).putShort((short) (512 + random.nextInt(4096)));
+            out.put((byte) 0).put((byte) g.ednsVersion).putShort((short) 0);
+            int rdLengthOffset = out.position();
+            out.putShort((short) 0);
+            if (random.nextBoolean()) {
+                int length = random.nextInt(8);
+                out.putShort((short) 65001).putShort((short) length);
+                for (int i = 0; i < length; i++) {
+                    out.put((byte) random.nextInt(256));
+                }
+            }
+            if (random.nextBoolean()) {
+                g.subnetFamily = random.nextBoolean() ? DNSCodec.FAMILY_IPV4 : DNSCodec.FAMILY_IPV6;
+                int maxPrefix = g.subnetFamily == DNSCodec.FAMILY_IPV4 ? 32 : 128;
+                g.subnetSource = random.nextInt(4) == 0 ? random.nextInt(maxPrefix + 1) : maxPrefix * 3 / 4;
+                g.subnetAddress = new byte[maxPrefix / 8];
+                random.nextBytes(g.subnetAddress);
+                for (int bit = g.subnetSource; bit < maxPrefix; bit++) {
+                    g.subnetAddress[bit / 8] &= (byte) ~(0x80 >>> (bit % 8));
+                }
+                int addressBytes = (g.subnetSource + 7) / 8;
+                out.putShort((short) DNSCodec.OPTION_CLIENT_SUBNET).putShort((short) (4 + addressBytes));
+                out.putShort((short) g.subnetFamily).put((byte) g.subnetSource).put((byte) 0);
+                out.put(g.subnetAddress, 0, addressBytes);
+            }
+            out.putShort(rdLengthOffset, (short) (out.position() - rdLengthOffset - 2));
+        }
+        g.bytes = Arrays.copyOf(out.array(), out.position());
+        return g;
+    }
+
+    private static byte[] mutate(byte[] message, Random random) {
+        byte[] m = message.clone();
+        switch (random.nextInt(5)) {
+            case 0:
+                for (int i = random.nextInt(8); i >= 0; i--) {
+                    m[random.nextInt(m.length)] ^= (byte) (1 << random.nextInt(8));
+                }
+                return m;
+            case 1:
+                return Arrays.copyOf(m, random.nextInt(m.length));
+            case 2: {
+                byte[] longer = Arrays.copyOf(m, m.length + 1 + random.nextInt(64));
+                for (int i = m.length; i < longer.length; i++) {
+                    longer[i] = (byte) random.nextInt(256);
+                }
+                return longer;
+            }
+            case 3:
+                // Bogus section counts.
+                m[4 + 2 * random.nextInt(4)] = (byte) random.nextInt(256);
+                m[5 + 2 * random.nextInt(4)] = (byte) random.nextInt(256);
+                return m;
+            default: {
+                byte[] noise = new byte[random.nextInt(600)];
+                random.nextBytes(noise);
+                return noise;
+            }
+        }
+    }
+
+    /**
+     * Structural checks that hold for any response: same ID and opcode, QR set, and the
+     * sections counted in the header exactly fill the message.
+     */
+    private static String checkResponse(byte[] request, byte[] response) {
+        if (response.length < DNSCodec.HEADER_LENGTH) {
+            return "response shorter than a header";
+        }
+        if (response[0] != request[0] || response[1] != request[1]) {
+            return "ID changed";
+        }
+        if ((response[2] & 0x80) == 0 || (response[2] & 0x78) != (request[2] & 0x78)) {
+            return "QR not set or opcode changed";
+        }
+        ByteBuffer message = ByteBuffer.wrap(response);
+        int offset = DNSCodec.HEADER_LENGTH;
+        int questions = message.getShort(4) & 0xFFFF;
+        for (int i = 0; i < questions; i++) {
+            offset = DNSCodec.skipName(message, offset, response.length);
+            if (offset < 0 || (offset += 4) > response.length) {
+                return "question section overruns the message";
+            }
+        }
+        int records = (message.getShort(6) & 0xFFFF) + (message.getShort(8) & 0xFFFF) + (message.getShort(10) & 0xFFFF);
+        for (int i = 0; i < records; i++) {
+            offset = DNSCodec.skipRecord(message, offset, response.length);
+            if (offset < 0) {
+                return "record sections overrun the message";
+            }
+        }
+        return offset == response.length ? null : "trailing bytes after the counted sections";
+    }
+
+    // The reference: what a careful String-based implementation would answer.
+    private static String checkExpected(Generated g, byte[] response, int rcode) {
+        String name = g.name.toLowerCase(Locale.ROOT);
+        int expected;
+        boolean answer = false;
+        if (g.ednsVersion > 0) {
+            expected = DNSCodec.RCODE_BADVERS;
+        } else if (name.equals(CDN_NAME)) {
+            expected = DNSCodec.RCODE_NOERROR;
+            answer = g.qtype == DNSCodec.TYPE_A || g.qtype == DNSCodec.TYPE_ANY;
+        } else if (name.endsWith("." + CDN_NAME)) {
+            expected = DNSCodec.RCODE_NXDOMAIN;
+        } else {
+            expected = DNSCodec.RCODE_REFUSED;
+        }
+        if (rcode != expected) {
+            return "RCODE " + rcode + ", expected " + expected;
+        }
+        int answers = ((response[6] & 0xFF) << 8) | (response[7] & 0xFF);
+        if (answers != (answer ? 1 : 0)) {
+            return answers + " answers, expected " + (answer ? 1 : 0);
+        }
+        int additional = ((response[10] & 0xFF) << 8) | (response[11] & 0xFF);
+        if (additional != (g.ednsVersion >= 0 ? 1 : 0)) {
+            return "OPT record missing or unexpected";
+        }
+        ByteBuffer message = ByteBuffer.wrap(response);
+        int offset = DNSCodec.skipName(message, DNSCodec.HEADER_LENGTH, response.length) + 4;
+        boolean useSubnet = g.subnetAddress != null && g.subnetSource > 0;
+        if (answer) {
+            String expectedReplica = ReplicaMapper.getBestReplica(useSubnet ? address(g.subnetAddress) : FUZZ_CLIENT);
+            offset = DNSCodec.skipRecord(message, offset, response.length);
+            String replica = address(Arrays.copyOfRange(response, offset - 4, offset));
+            if (!replica.equals(expectedReplica)) {
+                return "answered " + replica + ", expected " + expectedReplica;
+            }
+        }
+        if (g.subnetAddress != null && expected != DNSCodec.RCODE_BADVERS) {
+            // The Client Subnet option, echoed with the scope the answer depends on.
+            int addressBytes = (g.subnetSource + 7) / 8;
+            int mappedBits = ReplicaMapper.prefixBits(g.subnetAddress.length);
+            int scope = answer && useSubnet ? Math.min(g.subnetSource, mappedBits) : 0;
+            ByteBuffer option = ByteBuffer.allocate(8 + addressBytes);
+            option.putShort((short) DNSCodec.OPTION_CLIENT_SUBNET).putShort((short) (4 + addressBytes));
+            option.putShort((short) g.subnetFamily).put((byte) g.subnetSource).put((byte) scope);
+            option.put(g.subnetAddress, 0, addressBytes);
+            byte[] rdata = Arrays.copyOfRange(response, offset + 11, response.length);
+            if (!Arrays.equals(rdata, option.array())) {
+                return "Client Subnet not echoed as expected";
+            }
+        }
+        return null;
+    }
+
+    private static String address(byte[] bytes) {
+        try {
+            return InetAddress.getByAddress(bytes).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // The full RCODE, including the upper bits from the OPT record if there is one.
+    private static int rcode(byte[] response) {
+        int rcode = response[3] & 0x0F;
+        ByteBuffer message = ByteBuffer.wrap(response);
+        int offset = DNSCodec.HEADER_LENGTH;
+        for (int i = message.getShort(4) & 0xFFFF; i > 0; i--) {
+            offset = DNSCodec.skipName(message, offset, response.length) + 4;
+        }
+        int records = (message.getShort(6) & 0xFFFF) + (message.getShort(8) & 0xFFFF) + (message.getShort(10) & 0xFFFF);
+        for (int i = 0; i < records; i++) {
+            int end = DNSCodec.skipName(message, offset, response.length);
+            if ((message.getShort(end) & 0xFFFF) == DNSCodec.TYPE_OPT) {
+                rcode |= (message.get(end + 4) & 0xFF) << 4;
+            }
+            offset = DNSCodec.skipRecord(message, offset, response.length);
+        }
+        return rcode;
+    }
+
+    private static String randomCase(String name, Random random) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (char c : name.toCharArray()) {
+            sb.append(random.nextBoolean() ? Character.toUpperCase(c) : c);
+        }
+        return sb.toString();
+    }
+
+    private static String randomLabel(Random random) {
+        char[] label = new char[1 + random.nextInt(20)];
+        for (int i = 0; i < label.length; i++) {
+            label[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(label);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    // ---- replica selection ----
+
+    private static void selection(int networks, int rounds, double exploration) {
+        List<String> ips = List.of("10.0.0.1", "10.0.0.2", "10.0.0.3", "10.0.0.4", "10.0.0.5");
+        ReplicaSelector selector = new ReplicaSelector(ips, ReplicaSelector.DEFAULT_EWMA_ALPHA, exploration,
+                ReplicaSelector.DEFAULT_LOAD_WEIGHT);
+        Random random = new Random(5);
+        // True RTT from each network to each replica: 10-250 ms, one replica clearly closest.
+        double[][] rtt = new double[networks][ips.size()];
+        double ideal = 0;
+        double hashOnly = 0;
+        for (int n = 0; n < networks; n++) {
+            for (int r = 0; r < ips.size(); r++) {
+                rtt[n][r] = 60 + random.nextDouble() * 190;
+            }
+            rtt[n][random.nextInt(ips.size())] = 10 + random.nextDouble() * 40;
+            ideal += Arrays.stream(rtt[n]).min().getAsDouble();
+            hashOnly += rtt[n][ips.indexOf(selector.select(n).ip)];
+        }
+        System.out.printf("%d networks, %d replicas, exploration %.2f: hash only %.1f ms, ideal %.1f ms%n",
+                networks, ips.size(), exploration, hashOnly / networks, ideal / networks);
+        for (int round = 1; round <= rounds; round++) {
+            double served = 0;
+            int fastest = 0;
+            for (int n = 0; n < networks; n++) {
+                int r = ips.indexOf(selector.select(n).ip);
+                // The client measures the replica it was sent to, with +-20% noise.
+                double sample = rtt[n][r] * (0.8 + 0.4 * random.nextDouble());
+                selector.recordRtt(n, ips.get(r), sample);
+                served += rtt[n][r];
+                if (rtt[n][r] == Arrays.stream(rtt[n]).min().getAsDouble()) {
+                    fastest++;
+                }
+            }
+            selector.refresh();
+            System.out.printf("round %2d: %5.1f%% on the fastest replica, mean RTT %.1f ms%n",
+                    round, 100.0 * fastest / networks, served / networks);
+        }
+    }
+
+    // ---- hashing without measurements ----
+
+    private static void hashing(int networks, int replicaCount) {
+        Random random = new Random(11);
+        long[] keys = new long[networks];
+        for (int i = 0; i < networks; i++) {
+            byte[] address = new byte[4];
+            random.nextBytes(address);
+            keys[i] = ReplicaMapper.clientPrefix(address, 4, 24);
+        }
+        List<String> replicas = new ArrayList<>();
+        for (int i = 1; i <= replicaCount; i++) {
+            replicas.add("10.0.0." + i);
+        }
+        List<String> joined = new ArrayList<>(replicas);
+        joined.add("10.0.0." + (replicaCount + 1));
+        List<String> left = new ArrayList<>(replicas);
+        left.remove(replicaCount / 2);
+        System.out.printf("%d networks, %d replicas; a join should move %.1f%%, a leave %.1f%%%n",
+                networks, replicaCount, 100.0 / (replicaCount + 1), 100.0 / replicaCount);
+        System.out.println("mapping      moved on join  moved on leave  max/mean networks");
+        String[][] before = new String[3][];
+        for (int method = 0; method < 3; method++) {
+            String[] base = assign(method, replicas, keys);
+            String[] afterJoin = assign(method, joined, keys);
+            String[] afterLeave = assign(method, left, keys);
+            Map<String, Integer> counts = new HashMap<>();
+            for (String replica : base) {
+                counts.merge(replica, 1, Integer::sum);
+            }
+            int max = counts.values().stream().mapToInt(Integer::intValue).max().getAsInt();
+            System.out.printf("%-12s %12.1f%% %14.1f%% %18.2f%n", new String[] { "modulo", "ring", "rendezvous" }[method],
+                    100.0 * moved(base, afterJoin) / networks, 100.0 * moved(base, afterLeave) / networks,
+                    max / ((double) networks / replicaCount));
+            before[method] = base;
+        }
+
+        // Skewed popularity (Zipf): each network's weight is its share of the queries. Without
+        // bounds the replicas that draw the hottest networks take far more than their share;
+        // with load reports a replica at the saturation level stops taking new networks.
+        double[] weights = new double[networks];
+        double total = 0;
+        for (int i = 0; i < networks; i++) {
+            weights[i] = 1.0 / Math.pow(i + 1, 1.1);
+            total += weights[i];
+        }
+        double mean = total / replicaCount;
+        for (double slack : new double[] { -1, 0.25, 0.10 }) {
+            ReplicaSelector selector = new ReplicaSelector(replicas, ReplicaSelector.DEFAULT_EWMA_ALPHA, 0,
+                    ReplicaSelector.DEFAULT_LOAD_WEIGHT);
+            double capacity = slack < 0 ? Double.MAX_VALUE : (1 + slack) * mean / ReplicaSelector.SATURATED_LOAD;
+            Map<String, Double> load = new HashMap<>();
+            for (int i = 0; i < networks; i++) {
+                String replica = selector.select(keys[i]).ip;
+                double updated = load.merge(replica, weights[i], Double::sum);
+                selector.setLoad(replica, updated / capacity);
+            }
+            double max = load.values().stream().mapToDouble(Double::doubleValue).max().getAsDouble();
+            System.out.printf("skewed popularity, %s: busiest replica at %.2f x mean load%n",
+                    slack < 0 ? "unbounded" : String.format("saturation at %.0f%% over mean", slack * 100), max / mean);
+        }
+    }
+
+    // Assigns every network a replica: 0 modulo (the original mapping), 1 ring, 2 rendezvous.
+    private static String[] assign(int method, List<String> replicas, long[] keys) {
+        String[] assigned = new String[keys.length];
+        ConsistentHashRing ring = method == 1 ? new ConsistentHashRing(replicas) : null;
+        ReplicaSelector selector = method == 2 ? new ReplicaSelector(replicas) : null;
+        for (int i = 0; i < keys.length; i++) {
+            if (method == 0) {
+                assigned[i] = replicas.get(Math.floorMod(Long.hashCode(keys[i]), replicas.size()));
+            } else if (method == 1) {
+                assigned[i] = ring.owner(Long.toString(keys[i]));
+            } else {
+                assigned[i] = selector.select(keys[i]).ip;
+            }
+        }
+        return assigned;
+    }
+
+    private static int moved(String[] before, String[] after) {
+        int moved = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (!before[i].equals(after[i])) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    // ---- geo table ----
+
+    private static boolean geo(int networks, int lookups) throws UnknownHostException {
+        Random random = new Random(3);
+        PrefixTrie.Builder builder = new PrefixTrie.Builder();
+        long[] networkKeys = new long[networks];
+        int[] networkLengths = new int[networks];
+        int[] networkLists = new int[networks];
+        List<List<String>> lists = List.of(List.of("10.0.0.1", "10.0.0.2"), List.of("10.0.0.2"),
+                List.of("10.0.0.3", "10.0.0.1"), List.of("10.0.0.4"));
+        for (int n = 0; n < networks; n++) {
+            boolean ipv4 = random.nextInt(4) != 0;
+            byte[] address = new byte[ipv4 ? 4 : 16];
+            random.nextBytes(address);
+            // Mostly long prefixes, some short ones covering them; few top bits so they nest.
+            address[0] &= 0x0F;
+            int maxLength = ReplicaMapper.prefixBits(address.length);
+            int length = random.nextInt(3) == 0 ? 4 + random.nextInt(maxLength - 3) : maxLength - random.nextInt(4);
+            networkKeys[n] = ReplicaMapper.clientPrefix(address, address.length, length);
+            networkLengths[n] = length;
+            networkLists[n] = random.nextInt(lists.size());
+            builder.add(InetAddress.getByAddress(address).getHostAddress() + "/" + length, lists.get(networkLists[n]));
+        }
+        long start = System.nanoTime();
+        PrefixTrie trie = builder.build();
+        System.out.printf("%d networks built in %d ms%n", networks, (System.nanoTime() - start) / 1_000_000);
+
+        // Client networks to look up: half inside some table network, half anywhere.
+        long[] keys = new long[1 << 16];
+        for (int i = 0; i < keys.length; i++) {
+            if (random.nextBoolean()) {
+                int n = random.nextInt(networks);
+                int hostBits = (networkKeys[n] >>> 24 == 4 ? 24 : 56) - networkLengths[n];
+                keys[i] = networkKeys[n] | (hostBits == 0 ? 0 : random.nextLong() & ((1L << hostBits) - 1));
+            } else {
+                byte[] address = new byte[random.nextBoolean() ? 4 : 16];
+                random.nextBytes(address);
+                keys[i] = ReplicaMapper.clientPrefix(address, address.length, 128);
+            }
+        }
+        // Reference: the longest matching network by linear scan (later entries win ties).
+        int failures = 0;
+        for (int i = 0; i < 2000; i++) {
+            long key = keys[i];
+            int expected = -1;
+            int bestLength = -1;
+            for (int n = 0; n < networks; n++) {
+                boolean ipv4 = networkKeys[n] >>> 24 == 4;
+                if ((key >>> 24 == 4) != ipv4) {
+                    continue;
+                }
+                int hostBits = (ipv4 ? 24 : 56) - networkLengths[n];
+                if (key >>> hostBits == networkKeys[n] >>> hostBits && networkLengths[n] >= bestLength) {
+                    bestLength = networkLengths[n];
+                    expected = networkLists[n];
+                }
+            }
+            int actual = trie.lookup(key);
+            List<String> actualList = actual >= 0 ? trie.rankedList(actual) : null;
+            List<String> expectedList = expected >= 0 ? lists.get(expected) : null;
+            if (!Objects.equals(actualList, expectedList) && failures++ < 10) {
+                System.out.println("FAIL for " + Long.toHexString(key) + ": " + actualList + ", expected " + expectedList);
+            }
+        }
+        long matched = 0;
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            matched = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                matched += trie.lookup(keys[i & (keys.length - 1)]) >= 0 ? 1 : 0;
+            }
+        }
+        double nanos = (System.nanoTime() - start) / (double) lookups;
+        System.out.printf("%.1f ns per lookup (%d%% matched)%n", nanos, matched * 100 / lookups);
+        System.out.println(failures == 0 ? "geo: OK" : "geo: " + failures + " mismatches");
+        return failures == 0;
+    }
+
+    // ---- throughput ----
+
+    private static byte[] sampleQuery() {
+        Random random = new Random(1);
+        Generated g;
+        do {
+            g = generate(random);
+        } while (!g.name.equals(CDN_NAME) || g.qtype != DNSCodec.TYPE_A);
+        return g.bytes;
+    }
+
+    private static void inProcessThroughput(int seconds, int threads) throws InterruptedException {
+        DNSServer server = new DNSServer(0, CDN_NAME);
+        byte[] request = sampleQuery();
+        LongAdder answered = new LongAdder();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(DNSServer.MAX_UDP_PAYLOAD);
+                DNSCodec.Query query = new DNSCodec.Query();
+                InetAddress client = InetAddress.getLoopbackAddress();
+                long n = 0;
+                while ((n & 1023) != 0 || System.nanoTime() < end) {
+                    buffer.clear();
+                    buffer.put(request).flip();
+                    server.answer(buffer, client, query, DNSServer.DNSConfig.UDP_PAYLOAD_SIZE);
+                    n++;
+                }
+                answered.add(n);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.printf("in-process: %d threads, %.0f answers/s%n", threads, answered.sum() / (double) seconds);
+    }
+
+    // Starts a DNSServer on a free port, UDP and TCP, and returns the port.
+    private static int startServer(int serverThreads) throws IOException {
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        DNSServer.DNSConfig.THREADS = serverThreads;
+        new DNSServer(port, CDN_NAME).start();
+        return port;
+    }
+
+    private static void udpThroughput(int seconds, int port, int serverThreads, int clientThreads) throws Exception {
+        byte[] request = sampleQuery();
+        LongAdder answered = new LongAdder();
+        LongAdder lost = new LongAdder();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] clients = new Thread[clientThreads];
+        for (int t = 0; t < clientThreads; t++) {
+            clients[t] = new Thread(() -> {
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                    socket.setSoTimeout(200);
+                    DatagramPacket out = new DatagramPacket(request, request.length);
+                    DatagramPacket in = new DatagramPacket(new byte[DNSServer.MAX_UDP_PAYLOAD], DNSServer.MAX_UDP_PAYLOAD);
+                    int outstanding = 0;
+                    while (System.nanoTime() < end) {
+                        while (outstanding < CLIENT_WINDOW) {
+                            socket.send(out);
+                            outstanding++;
+                        }
+                        try {
+                            socket.receive(in);
+                            outstanding--;
+                            answered.increment();
+                        } catch (SocketTimeoutException e) {
+                            lost.add(outstanding);
+                            outstanding = 0;
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("client failed: " + e);
+                }
+            });
+            clients[t].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        System.out.printf("udp: %d server threads, %d clients x %d in flight, %.0f answers/s, %d lost%n",
+                serverThreads, clientThreads, CLIENT_WINDOW, answered.sum() / (double) seconds, lost.sum());
+    }
+
+    // Each client keeps one connection and pipelines CLIENT_WINDOW framed queries at a time.
+    private static void tcpThroughput(int seconds, int port, int clientThreads) throws Exception {
+        byte[] request = sampleQuery();
+        LongAdder answered = new LongAdder();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] clients = new Thread[clientThreads];
+        for (int t = 0; t < clientThreads; t++) {
+            clients[t] = new Thread(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    byte[] response = new byte[65535];
+                    while (System.nanoTime() < end) {
+                        for (int i = 0; i < CLIENT_WINDOW; i++) {
+                            out.writeShort(request.length);
+                            out.write(request);
+                        }
+                        out.flush();
+                        for (int i = 0; i < CLIENT_WINDOW; i++) {
+                            in.readFully(response, 0, in.readUnsignedShort());
+                        }
+                        answered.add(CLIENT_WINDOW);
+                    }
+                } catch (IOException e) {
+                    System.out.println("client failed: " + e);
+                }
+            });
+            clients[t].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        System.out.printf("tcp: %d connections x %d in flight, %.0f answers/s%n",
+                clientThreads, CLIENT_WINDOW, answered.sum() / (double) seconds);
+    }
+}
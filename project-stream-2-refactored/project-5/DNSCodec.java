@@ -0,0 +1,396 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads and writes DNS messages (RFC 1035, EDNS(0) per RFC 6891) directly in a ByteBuffer.
+ *
+ * Parsing fills a caller-owned, reusable Query instead of creating objects: the question
+ * name is decompressed and lower-cased into the Query's scratch array, and everything else
+ * is recorded as numbers and offsets into the message. Names are compared as wire-format
+ * bytes, never as Strings. Compression pointers are followed with a hop limit, so a
+ * malicious message cannot loop the parser.
+ *
+ * All offsets are absolute positions in the buffer; the buffer's position and limit are
+ * left alone, except by the methods that write a response.
+ */
+public class DNSCodec {
+
+    static final int HEADER_LENGTH = 12;
+    static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_POINTER_HOPS = 64;
+
+    static final int TYPE_A = 1;
+    static final int TYPE_OPT = 41;
+    static final int TYPE_ANY = 255;
+    static final int CLASS_IN = 1;
+
+    // EDNS option codes.
+    static final int OPTION_CLIENT_SUBNET = 8;
+    static final int FAMILY_IPV4 = 1;
+    static final int FAMILY_IPV6 = 2;
+
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_FORMERR = 1;
+    static final int RCODE_NXDOMAIN = 3;
+    static final int RCODE_NOTIMP = 4;
+    static final int RCODE_REFUSED = 5;
+    // Extended RCODE, only expressible with an OPT record.
+    static final int RCODE_BADVERS = 16;
+
+    // parse() results besides an RCODE: the datagram is not a query worth answering.
+    static final int DROP = -1;
+
+    // Where a name lies relative to a zone.
+    static final int OUTSIDE_ZONE = -1;
+    static final int ZONE_APEX = 0;
+    static final int BELOW_ZONE = 1;
+
+    /**
+     * The parts of a query needed to answer it. One instance per worker, reused for every
+     * message.
+     */
+    static final class Query {
+        int id;
+        int opcode;
+        int questionCount;
+        // The question: decompressed, lower-cased wire-format name, type and class.
+        final byte[] name = new byte[MAX_NAME_LENGTH];
+        int nameLength;
+        int qtype;
+        int qclass;
+        // End of the question section; the response keeps the message up to here.
+        int questionEnd;
+        // EDNS(0): whether the query had an OPT record, and its fields.
+        boolean edns;
+        int udpPayloadSize;
+        int ednsVersion;
+        boolean dnssecOk;
+        // RDATA of the OPT record (the EDNS options), as offset and length in the message.
+        int optionsOffset;
+        int optionsLength;
+        // EDNS Client Subnet (RFC 7871), if the query carried a valid one: the family, how
+        // many leading bits of the address the resolver disclosed, and the address itself,
+        // zero-filled to its full 4 or 16 bytes.
+        boolean clientSubnet;
+        int subnetFamily;
+        int subnetSourcePrefix;
+        final byte[] subnetAddress = new byte[16];
+
+        void reset() {
+            id = 0;
+            opcode = 0;
+            questionCount = 0;
+            nameLength = 0;
+            qtype = 0;
+            qclass = 0;
+            questionEnd = HEADER_LENGTH;
+            edns = false;
+            udpPayloadSize = 512;
+            ednsVersion = 0;
+            dnssecOk = false;
+            optionsOffset = 0;
+            optionsLength = 0;
+            clientSubnet = false;
+        }
+
+        // Length of the Client Subnet address: 4 for IPv4, 16 for IPv6.
+        int subnetAddressLength() {
+            return subnetFamily == FAMILY_IPV4 ? 4 : 16;
+        }
+    }
+
+    /**
+     * Parses the query between position 0 and the buffer's limit. Returns RCODE_NOERROR if
+     * it can be answered, DROP if it must be ignored (too short for a header, or a
+     * response), or the RCODE to answer with: FORMERR for malformed messages (including
+     * malformed EDNS options) or anything other than exactly one question, NOTIMP for
+     * opcodes other than QUERY.
+     */
+    static int parse(ByteBuffer message, Query query) {
+        query.reset();
+        int limit = message.limit();
+        if (limit < HEADER_LENGTH || (message.get(2) & 0x80) != 0) {
+            return DROP;
+        }
+        query.id = message.getShort(0) & 0xFFFF;
+        query.opcode = (message.get(2) >> 3) & 0x0F;
+        query.questionCount = message.getShort(4) & 0xFFFF;
+        int answerCount = message.getShort(6) & 0xFFFF;
+        int authorityCount = message.getShort(8) & 0xFFFF;
+        int additionalCount = message.getShort(10) & 0xFFFF;
+        if (query.questionCount != 1) {
+            return query.opcode != 0 ? RCODE_NOTIMP : RCODE_FORMERR;
+        }
+        int nameEnd = readName(message, HEADER_LENGTH, limit, query);
+        if (nameEnd < 0 || nameEnd + 4 > limit) {
+            return RCODE_FORMERR;
+        }
+        query.qtype = message.getShort(nameEnd) & 0xFFFF;
+        query.qclass = message.getShort(nameEnd + 2) & 0xFFFF;
+        query.questionEnd = nameEnd + 4;
+        if (query.opcode != 0) {
+            return RCODE_NOTIMP;
+        }
+        int offset = query.questionEnd;
+        // Queries normally carry no answer or authority records, but skip them if present.
+        for (int i = 0; i < answerCount + authorityCount; i++) {
+            offset = skipRecord(message, offset, limit);
+            if (offset < 0) {
+                return RCODE_FORMERR;
+            }
+        }
+        for (int i = 0; i < additionalCount; i++) {
+            int recordStart = offset;
+            int end = skipName(message, offset, limit);
+            if (end < 0 || end + 10 > limit) {
+                return RCODE_FORMERR;
+            }
+            int type = message.getShort(end) & 0xFFFF;
+            int rdLength = message.getShort(end + 8) & 0xFFFF;
+            if (end + 10 + rdLength > limit) {
+                return RCODE_FORMERR;
+            }
+            if (type == TYPE_OPT) {
+                // Exactly one OPT record, owned by the root name (RFC 6891 6.1.1).
+                if (query.edns || end != recordStart + 1) {
+                    return RCODE_FORMERR;
+                }
+                query.edns = true;
+                query.udpPayloadSize = Math.max(512, message.getShort(end + 2) & 0xFFFF);
+                query.ednsVersion = message.get(end + 5) & 0xFF;
+                query.dnssecOk = (message.get(end + 6) & 0x80) != 0;
+                query.optionsOffset = end + 10;
+                query.optionsLength = rdLength;
+                if (!parseOptions(message, query)) {
+                    return RCODE_FORMERR;
+                }
+            }
+            offset = end + 10 + rdLength;
+        }
+        return RCODE_NOERROR;
+    }
+
+    /**
+     * Walks the EDNS options of the query's OPT record, picking up a Client Subnet option
+     * and skipping the rest. Returns false if the options do not exactly fill the RDATA or
+     * the Client Subnet option breaks the rules of RFC 7871 section 6: a known family, a
+     * source prefix no longer than the address, a zero scope, only as many address bytes as
+     * the prefix needs, and no bits set past the prefix.
+     */
+    private static boolean parseOptions(ByteBuffer message, Query query) {
+        int offset = query.optionsOffset;
+        int end = offset + query.optionsLength;
+        while (offset < end) {
+            if (offset + 4 > end) {
+                return false;
+            }
+            int code = message.getShort(offset) & 0xFFFF;
+            int length = message.getShort(offset + 2) & 0xFFFF;
+            int data = offset + 4;
+            if (data + length > end) {
+                return false;
+            }
+            if (code == OPTION_CLIENT_SUBNET) {
+                if (query.clientSubnet || length < 4) {
+                    return false;
+                }
+                int family = message.getShort(data) & 0xFFFF;
+                int sourcePrefix = message.get(data + 2) & 0xFF;
+                int scopePrefix = message.get(data + 3) & 0xFF;
+                int maxPrefix = family == FAMILY_IPV4 ? 32 : family == FAMILY_IPV6 ? 128 : -1;
+                int addressBytes = (sourcePrefix + 7) / 8;
+                if (sourcePrefix > maxPrefix || scopePrefix != 0 || length != 4 + addressBytes) {
+                    return false;
+                }
+                Arrays.fill(query.subnetAddress, (byte) 0);
+                message.get(data + 4, query.subnetAddress, 0, addressBytes);
+                if (sourcePrefix % 8 != 0
+                        && (query.subnetAddress[addressBytes - 1] & (0xFF >>> (sourcePrefix % 8))) != 0) {
+                    return false;
+                }
+                query.clientSubnet = true;
+                query.subnetFamily = family;
+                query.subnetSourcePrefix = sourcePrefix;
+            }
+            offset = data + length;
+        }
+        return true;
+    }
+
+    /**
+     * Decompresses the name at offset into query.name, lower-casing ASCII letters. Returns
+     * the offset just past the name as it is stored at offset (after a pointer, if it ends
+     * in one), or -1 if the name is malformed, too long or loops.
+     */
+    static int readName(ByteBuffer message, int offset, int limit, Query query) {
+        int position = offset;
+        int end = -1;
+        int length = 0;
+        for (int hops = 0; hops <= MAX_POINTER_HOPS; ) {
+            if (position >= limit) {
+                return -1;
+            }
+            int labelLength = message.get(position) & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (position + 1 >= limit) {
+                    return -1;
+                }
+                if (end < 0) {
+                    end = position + 2;
+                }
+                int target = ((labelLength & 0x3F) << 8) | (message.get(position + 1) & 0xFF);
+                if (target >= position) {
+                    return -1; // pointers must point backwards
+                }
+                position = target;
+                hops++;
+                continue;
+            }
+            if ((labelLength & 0xC0) != 0) {
+                return -1; // reserved label types
+            }
+            if (length + 1 + labelLength > MAX_NAME_LENGTH || position + 1 + labelLength > limit) {
+                return -1;
+            }
+            query.name[length++] = (byte) labelLength;
+            if (labelLength == 0) {
+                query.nameLength = length;
+                return end >= 0 ? end : position + 1;
+            }
+            for (int i = 1; i <= labelLength; i++) {
+                query.name[length++] = toLowerCase(message.get(position + i));
+            }
+            position += 1 + labelLength;
+        }
+        return -1;
+    }
+
+    /**
+     * Skips the name at offset without decoding it. Returns the offset just past it, or -1
+     * if it runs past limit.
+     */
+    static int skipName(ByteBuffer message, int offset, int limit) {
+        int position = offset;
+        while (position < limit) {
+            int labelLength = message.get(position) & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) {
+                return position + 2 <= limit ? position + 2 : -1;
+            }
+            if ((labelLength & 0xC0) != 0) {
+                return -1;
+            }
+            if (labelLength == 0) {
+                return position + 1;
+            }
+            position += 1 + labelLength;
+        }
+        return -1;
+    }
+
+    // Skips a whole resource record; returns the offset past it or -1.
+    static int skipRecord(ByteBuffer message, int offset, int limit) {
+        int end = skipName(message, offset, limit);
+        if (end < 0 || end + 10 > limit) {
+            return -1;
+        }
+        int next = end + 10 + (message.getShort(end + 8) & 0xFFFF);
+        return next <= limit ? next : -1;
+    }
+
+    /**
+     * Where the query's name lies relative to the zone, given as a lower-case wire-format
+     * name: ZONE_APEX, BELOW_ZONE (a subdomain) or OUTSIDE_ZONE.
+     */
+    static int zoneMatch(Query query, byte[] zoneWire) {
+        int suffixStart = query.nameLength - zoneWire.length;
+        if (suffixStart < 0) {
+            return OUTSIDE_ZONE;
+        }
+        for (int i = 0; i < zoneWire.length; i++) {
+            if (query.name[suffixStart + i] != zoneWire[i]) {
+                return OUTSIDE_ZONE;
+            }
+        }
+        if (suffixStart == 0) {
+            return ZONE_APEX;
+        }
+        // The suffix only counts if it starts on a label boundary.
+        int position = 0;
+        while (position < suffixStart) {
+            position += 1 + (query.name[position] & 0xFF);
+        }
+        return position == suffixStart ? BELOW_ZONE : OUTSIDE_ZONE;
+    }
+
+    /**
+     * Rewrites the header of the query in place into a response header: QR and AA set,
+     * opcode and RD copied, the given RCODE (low four bits) and section counts.
+     */
+    static void writeResponseHeader(ByteBuffer message, int rcode, int questions, int answers, int additional) {
+        message.put(2, (byte) (0x84 | (message.get(2) & 0x79)));
+        message.put(3, (byte) (rcode & 0x0F));
+        message.putShort(4, (short) questions);
+        message.putShort(6, (short) answers);
+        message.putShort(8, (short) 0);
+        message.putShort(10, (short) additional);
+    }
+
+    // Sets TC: the response was cut short and the client should ask again over TCP.
+    static void setTruncated(ByteBuffer message) {
+        message.put(2, (byte) (message.get(2) | 0x02));
+    }
+
+    /**
+     * Writes an OPT record at the buffer's position: root name, the UDP payload size this
+     * server accepts, the upper eight bits of the RCODE and EDNS version 0. If the query
+     * had a Client Subnet option it is echoed with the given scope prefix length, the
+     * number of address bits the response depends on (0: valid for any client).
+     */
+    static void writeOpt(ByteBuffer message, int udpPayloadSize, int rcode, Query query, int scopePrefix) {
+        message.put((byte) 0);
+        message.putShort((short) TYPE_OPT);
+        message.putShort((short) udpPayloadSize);
+        message.put((byte) (rcode >>> 4));
+        message.put((byte) 0); // version
+        message.putShort((short) 0); // flags: DO clear, no DNSSEC here
+        if (!query.clientSubnet) {
+            message.putShort((short) 0); // RDLENGTH
+            return;
+        }
+        int addressBytes = (query.subnetSourcePrefix + 7) / 8;
+        message.putShort((short) (8 + addressBytes));
+        message.putShort((short) OPTION_CLIENT_SUBNET);
+        message.putShort((short) (4 + addressBytes));
+        message.putShort((short) query.subnetFamily);
+        message.put((byte) query.subnetSourcePrefix);
+        message.put((byte) scopePrefix);
+        message.put(query.subnetAddress, 0, addressBytes);
+    }
+
+    static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    // The lower-case wire format of a dotted name: length-prefixed labels and a zero.
+    static byte[] toWireFormat(String name) {
+        String trimmed = name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+        ByteBuffer wire = ByteBuffer.allocate(trimmed.length() + 2);
+        if (!trimmed.isEmpty()) {
+            for (String label : trimmed.toLowerCase().split("\\.")) {
+                byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+                if (bytes.length == 0 || bytes.length > 63) {
+                    throw new IllegalArgumentException("Invalid domain name " + name);
+                }
+                wire.put((byte) bytes.length).put(bytes);
+            }
+        }
+        wire.put((byte) 0);
+        if (wire.position() > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Domain name too long: " + name);
+        }
+        byte[] result = new byte[wire.position()];
+        wire.flip().get(result);
+        return result;
+    }
+}
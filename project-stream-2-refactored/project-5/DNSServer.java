@@ -1,139 +1,563 @@
-import java.io.ByteArrayOutputStream;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DNSServer {
 
+    // Largest UDP query accepted; room for EDNS payloads beyond the classic 512 bytes.
+    static final int MAX_UDP_PAYLOAD = 4096;
+    // Largest UDP response to a client without EDNS, and the least any EDNS client takes.
+    static final int CLASSIC_UDP_LIMIT = 512;
+    // Largest query accepted over TCP. No query this server answers comes close; a longer
+    // length prefix closes the connection.
+    static final int MAX_TCP_QUERY = MAX_UDP_PAYLOAD;
+    // How often TCP writes are checked against their deadline.
+    private static final long TCP_WATCHDOG_PERIOD_MILLIS = 250;
+
     // The CDN-specific domain name to serve (e.g., cs5700cdn.example.com)
     private final String cdnDomain;
+    // The same name in wire format (length-prefixed lower-case labels, terminating zero).
+    private final byte[] cdnDomainWire;
     // The port to listen on
     private final int port;
+    // Encoded answers per client network; rebuilt when the replica mapping changes.
+    private final AnswerCache answerCache;
+    // Networks to be probed by the replicas, and their RTT reports; null when disabled.
+    private final ProbeCollector probeCollector;
+    // The replica pool with its health checks; null when neither a replica file nor a
+    // health port is configured.
+    private final ReplicaRegistry registry;
+    // Modification time of the geo table file as last loaded.
+    private FileTime geoTableModified;
+
+    // Query counters, reported periodically instead of a log line per query.
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder answered = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder nxdomain = new LongAdder();
+    private final LongAdder clientSubnet = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder tcpQueries = new LongAdder();
+    private final AtomicInteger tcpConnections = new AtomicInteger();
+    private final LongAdder tcpWriteTimeouts = new LongAdder();
+    // Output of the open TCP connections, for the watchdog to find stalled writes.
+    private final Set<DeadlineOutputStream> tcpOutputs = ConcurrentHashMap.newKeySet();
 
     public DNSServer(int port, String cdnDomain) {
         this.port = port;
         this.cdnDomain = cdnDomain.toLowerCase();
+        this.cdnDomainWire = DNSCodec.toWireFormat(this.cdnDomain);
+        this.answerCache = new AnswerCache(DNSConfig.ANSWER_CACHE_SLOTS, DNSConfig.TTL_SECONDS);
+        this.probeCollector = DNSConfig.PROBE_PORT > 0
+                ? new ProbeCollector(ReplicaMapper.selector(), DNSConfig.PROBE_TARGET_SLOTS) : null;
+        this.registry = DNSConfig.REPLICA_FILE != null || DNSConfig.HEALTH_PORT > 0
+                ? new ReplicaRegistry(ReplicaMapper.selector(),
+                        DNSConfig.REPLICA_FILE != null ? Paths.get(DNSConfig.REPLICA_FILE) : null,
+                        DNSConfig.HEALTH_PORT, DNSConfig.HEALTH_CHECK_TIMEOUT_MILLIS, DNSConfig.TTL_SECONDS)
+                : null;
     }
 
+    /**
+     * Starts DNSConfig.THREADS workers. Where the platform supports SO_REUSEPORT every
+     * worker binds its own channel to the port and the kernel spreads queries across them;
+     * otherwise the workers share one channel. Each worker owns one direct buffer, which
+     * holds a query and then, rewritten in place, its response, so answering a query
+     * allocates next to nothing.
+     *
+     * Everything that can fail (the geo table, the ports) is set up before the workers, which
+     * keep the process alive, start: a server that cannot start completely does not start.
+     */
     public void start() throws IOException {
-        DatagramSocket socket = new DatagramSocket(port);
-        System.out.println("DNS Server started on port " + port + " for domain " + cdnDomain);
-        byte[] buffer = new byte[512]; // typical DNS packet size
-        while (true) {
-            DatagramPacket requestPacket = new DatagramPacket(buffer, buffer.length);
-            socket.receive(requestPacket);
-            byte[] requestData = new byte[requestPacket.getLength()];
-            System.arraycopy(buffer, 0, requestData, 0, requestPacket.getLength());
-
-            // Parse DNS query (very basic parser for one question)
-            String queryName = parseQueryName(requestData);
-            if (queryName != null && queryName.equals(cdnDomain)) {
-                // For demonstration, use the client IP (from request packet) as the basis for replica mapping
-                String clientIP = requestPacket.getAddress().getHostAddress();
-                String replicaIP = ReplicaMapper.getBestReplica(clientIP);
-                System.out.println("Mapping client " + clientIP + " to replica " + replicaIP);
-                byte[] response = buildResponse(requestData, replicaIP);
-                DatagramPacket responsePacket = new DatagramPacket(response, response.length,
-                        requestPacket.getAddress(), requestPacket.getPort());
-                socket.send(responsePacket);
+        if (registry != null) {
+            registry.start(DNSConfig.HEALTH_CHECK_INTERVAL_SECONDS); // the pool is known before the first answer
+        }
+        ReplicaMapper.selector().setExplorationRate(DNSConfig.EXPLORATION_RATE);
+        if (DNSConfig.GEO_TABLE != null) {
+            loadGeoTable();
+        }
+        if (probeCollector != null) {
+            probeCollector.start(DNSConfig.PROBE_BIND_ADDRESS, DNSConfig.PROBE_PORT);
+        }
+        if (DNSConfig.METRICS_PORT > 0) {
+            startMetricsEndpoint(DNSConfig.METRICS_PORT);
+            System.out.println("Metrics endpoint started on port " + DNSConfig.METRICS_PORT);
+        }
+        int threads = Math.max(1, DNSConfig.THREADS);
+        DatagramChannel[] channels = new DatagramChannel[threads];
+        boolean reusePort = DNSConfig.REUSE_PORT && supportsReusePort();
+        for (int i = 0; i < threads; i++) {
+            if (reusePort) {
+                channels[i] = DatagramChannel.open();
+                channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channels[i].bind(new InetSocketAddress(port));
             } else {
-                // Optionally: send an error response or ignore
-                System.out.println("Received query for unknown domain: " + queryName);
+                channels[i] = i == 0 ? DatagramChannel.open().bind(new InetSocketAddress(port)) : channels[0];
+            }
+        }
+        if (DNSConfig.TCP) {
+            startTcp();
+        }
+        startMaintenance();
+        for (int i = 0; i < threads; i++) {
+            DatagramChannel channel = channels[i];
+            Thread worker = new Thread(() -> serve(channel), "dns-worker-" + i);
+            worker.start();
+        }
+        System.out.println("DNS Server started on port " + port + " for domain " + cdnDomain + " with " + threads
+                + " workers" + (reusePort ? " (SO_REUSEPORT)" : "") + (DNSConfig.TCP ? ", TCP on the same port" : ""));
+    }
+
+    private static boolean supportsReusePort() throws IOException {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private void serve(DatagramChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_UDP_PAYLOAD);
+        DNSCodec.Query query = new DNSCodec.Query();
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress client = channel.receive(buffer);
+                buffer.flip();
+                queries.increment();
+                if (answer(buffer, ((InetSocketAddress) client).getAddress(), query, DNSConfig.UDP_PAYLOAD_SIZE)) {
+                    channel.send(buffer, client);
+                }
+            } catch (IOException e) {
+                // An ICMP-triggered error on one send must not stop the worker.
+            } catch (RuntimeException e) {
+                malformed.increment(); // a datagram the parser choked on
             }
         }
     }
 
     /**
-     * Very simple parser that extracts the query name from the DNS request.
-     * Note: This parser assumes a single question and no compression.
+     * Accepts DNS over TCP (RFC 7766) on the same port. Each connection is served on its own
+     * virtual thread, with the codec and answer cache the UDP workers use.
      */
-    private String parseQueryName(byte[] data) {
-        try {
-            ByteBuffer buffer = ByteBuffer.wrap(data);
-            // Skip the 12-byte header.
-            buffer.position(12);
-            StringBuilder sb = new StringBuilder();
+    private void startTcp() throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port), DNSConfig.TCP_BACKLOG);
+        ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    if (tcpConnections.incrementAndGet() > DNSConfig.TCP_MAX_CONNECTIONS) {
+                        tcpConnections.decrementAndGet();
+                        socket.close(); // the client retries later or elsewhere
+                        continue;
+                    }
+                    connections.execute(() -> serveTcp(socket));
+                } catch (IOException e) {
+                    // keep accepting
+                }
+            }
+        }, "dns-tcp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dns-tcp-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        watchdog.scheduleWithFixedDelay(this::closeStalledWrites,
+                TCP_WATCHDOG_PERIOD_MILLIS, TCP_WATCHDOG_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Closes connections whose client has not taken a response for the idle timeout; the
+    // socket timeout bounds reads only, so a client that never reads would block the write.
+    private void closeStalledWrites() {
+        long now = System.currentTimeMillis();
+        for (DeadlineOutputStream output : tcpOutputs) {
+            if (output.writeDeadline < now) {
+                tcpWriteTimeouts.increment();
+                try {
+                    output.socket.close();
+                } catch (IOException e) {
+                    // closed anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers the queries of one connection, each framed by a two-byte length, in the order
+     * they arrive. Clients may pipeline: queries already buffered are answered before the
+     * responses are flushed together. The connection is closed when it has been idle for
+     * the configured timeout, when a write has not gone through for as long, or on a query
+     * longer than MAX_TCP_QUERY.
+     */
+    private void serveTcp(Socket socket) {
+        byte[] message = new byte[MAX_TCP_QUERY];
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        DNSCodec.Query query = new DNSCodec.Query();
+        DeadlineOutputStream output = null;
+        try (socket) {
+            socket.setSoTimeout(DNSConfig.TCP_IDLE_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            InetAddress client = socket.getInetAddress();
+            output = new DeadlineOutputStream(socket, DNSConfig.TCP_IDLE_TIMEOUT_MILLIS);
+            tcpOutputs.add(output);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
             while (true) {
-                int len = buffer.get() & 0xFF;
-                if (len == 0) {
-                    break;
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                } catch (EOFException e) {
+                    return; // the client is done
+                }
+                if (length > message.length) {
+                    return;
+                }
+                in.readFully(message, 0, length);
+                buffer.clear().limit(length);
+                queries.increment();
+                tcpQueries.increment();
+                try {
+                    if (answer(buffer, client, query, 0)) {
+                        out.writeShort(buffer.limit());
+                        out.write(message, 0, buffer.limit());
+                    }
+                } catch (RuntimeException e) {
+                    malformed.increment(); // a message the parser choked on
                 }
-                byte[] label = new byte[len];
-                buffer.get(label);
-                if (sb.length() > 0) {
-                    sb.append(".");
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // idle or write timeout, reset or a truncated frame: the connection is closed
+        } finally {
+            if (output != null) {
+                tcpOutputs.remove(output);
+            }
+            tcpConnections.decrementAndGet();
+        }
+    }
+
+    // A TCP connection's output, with the time by which the write in progress has to be done.
+    private static final class DeadlineOutputStream extends FilterOutputStream {
+        final Socket socket;
+        private final long timeoutMillis;
+        volatile long writeDeadline = Long.MAX_VALUE;
+
+        DeadlineOutputStream(Socket socket, long timeoutMillis) throws IOException {
+            super(socket.getOutputStream());
+            this.socket = socket;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeDeadline = System.currentTimeMillis() + timeoutMillis;
+            try {
+                out.write(b, off, len);
+            } finally {
+                writeDeadline = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Turns the query in the buffer (position 0, limit at its end) into the response, in
+     * place: the header is rewritten, the question is kept as it is, anything after it
+     * (such as additional records) is dropped, and the answer and, for EDNS queries, an OPT
+     * record are appended. Returns false if the datagram deserves no response at all.
+     *
+     * Over UDP (maxUdpLength > 0, the largest datagram this server sends) a response longer
+     * than the client takes (512 bytes, or the EDNS payload size it advertised, but no more
+     * than maxUdpLength) is cut back to the header, question and OPT record with TC set, so
+     * the client asks again over TCP. Over TCP (maxUdpLength 0) nothing is truncated.
+     *
+     * The CDN name itself is answered; other names in its zone get NXDOMAIN and names
+     * outside it REFUSED, since this server is authoritative for the zone only.
+     *
+     * The replica is chosen for the client network, which is the EDNS Client Subnet when the
+     * resolver sends one and the resolver's own address otherwise: a public resolver serves
+     * users far apart, and its address says nothing about where they are. The subnet is
+     * echoed with the number of its bits the answer depends on, so the resolver caches the
+     * answer for that network only.
+     */
+    boolean answer(ByteBuffer buffer, InetAddress client, DNSCodec.Query query, int maxUdpLength) {
+        int rcode = DNSCodec.parse(buffer, query);
+        if (rcode == DNSCodec.DROP) {
+            malformed.increment();
+            return false; // too short to answer, or itself a response
+        }
+        boolean apex = false;
+        if (rcode == DNSCodec.RCODE_FORMERR) {
+            malformed.increment();
+        } else if (rcode == DNSCodec.RCODE_NOERROR) {
+            if (query.edns && query.ednsVersion != 0) {
+                rcode = DNSCodec.RCODE_BADVERS;
+            } else {
+                switch (DNSCodec.zoneMatch(query, cdnDomainWire)) {
+                    case DNSCodec.ZONE_APEX:
+                        apex = true;
+                        break;
+                    case DNSCodec.BELOW_ZONE:
+                        rcode = DNSCodec.RCODE_NXDOMAIN;
+                        nxdomain.increment();
+                        break;
+                    default:
+                        rcode = DNSCodec.RCODE_REFUSED;
+                        refused.increment();
+                        break;
                 }
-                sb.append(new String(label, "UTF-8"));
             }
-            return sb.toString().toLowerCase();
-        } catch (Exception e) {
-            return null;
         }
+        boolean hasAnswer = apex && query.qclass == DNSCodec.CLASS_IN
+                && (query.qtype == DNSCodec.TYPE_A || query.qtype == DNSCodec.TYPE_ANY);
+        AnswerCache.Entry answers = null;
+        int scopePrefix = 0;
+        if (hasAnswer) {
+            long prefix;
+            if (query.clientSubnet && query.subnetSourcePrefix > 0) {
+                int length = query.subnetAddressLength();
+                prefix = ReplicaMapper.clientPrefix(query.subnetAddress, length, query.subnetSourcePrefix);
+                scopePrefix = Math.min(query.subnetSourcePrefix, ReplicaMapper.prefixBits(length));
+                clientSubnet.increment();
+            } else {
+                prefix = ReplicaMapper.clientPrefix(client);
+            }
+            answers = answerCache.answer(prefix, query.qtype);
+            if (probeCollector != null) {
+                probeCollector.seen(prefix, client, query);
+            }
+        }
+        int questions = query.questionEnd > DNSCodec.HEADER_LENGTH ? 1 : 0;
+        DNSCodec.writeResponseHeader(buffer, rcode, questions, hasAnswer ? answers.answerCount : 0, query.edns ? 1 : 0);
+        buffer.limit(buffer.capacity());
+        buffer.position(query.questionEnd);
+        if (hasAnswer) {
+            buffer.put(answers.answers);
+        }
+        if (query.edns) {
+            DNSCodec.writeOpt(buffer, DNSConfig.UDP_PAYLOAD_SIZE, rcode, query, scopePrefix);
+        }
+        if (maxUdpLength > 0 && buffer.position() > udpLimit(query, maxUdpLength)) {
+            DNSCodec.writeResponseHeader(buffer, rcode, questions, 0, query.edns ? 1 : 0);
+            DNSCodec.setTruncated(buffer);
+            buffer.position(query.questionEnd);
+            if (query.edns) {
+                DNSCodec.writeOpt(buffer, DNSConfig.UDP_PAYLOAD_SIZE, rcode, query, scopePrefix);
+            }
+            truncated.increment();
+        }
+        buffer.flip();
+        if (apex) {
+            answered.increment();
+        }
+        return true;
+    }
+
+    // The longest UDP response the client takes (RFC 6891: EDNS sizes below 512 mean 512).
+    private static int udpLimit(DNSCodec.Query query, int maxUdpLength) {
+        int clientLimit = query.edns ? Math.max(query.udpPayloadSize, CLASSIC_UDP_LIMIT) : CLASSIC_UDP_LIMIT;
+        return Math.min(clientLimit, maxUdpLength);
     }
 
     /**
-     * Builds a simple DNS response packet with a single A record answer.
+     * Loads the geo table if its file changed since the last load, and swaps it into the
+     * replica selector. A table that fails to load leaves the current one in place.
      */
-    private byte[] buildResponse(byte[] requestData, String ipStr) throws IOException {
-        ByteBuffer requestBuffer = ByteBuffer.wrap(requestData);
-        // The DNS header is the first 12 bytes.
-        byte[] header = new byte[12];
-        requestBuffer.get(header);
-        // Create response header:
-        // Set the response flag (QR = 1) and copy the ID.
-        header[2] = (byte) 0x81; // 1000 0001 (flags: QR, Opcode=0, AA=0, TC=0, RD=1)
-        header[3] = (byte) 0x80; // 1000 0000 (flags: RA=1, Z=0, RCODE=0)
-        // Set QDCOUNT to the same value (we support one question)
-        // Set ANCOUNT (number of answers) to 1.
-        header[6] = 0;
-        header[7] = 1;
-        // NSCOUNT and ARCOUNT can be zero.
-        header[8] = 0;
-        header[9] = 0;
-        header[10] = 0;
-        header[11] = 0;
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(header);
-        // Copy the Question section (the rest of the query until we reach the QTYPE and QCLASS, which we preserve)
-        // For simplicity, we assume the question section is everything after the header until a total length is reached.
-        // (A robust implementation would properly parse and reassemble the question.)
-        int questionLength = requestData.length - 12;
-        baos.write(requestData, 12, questionLength);
-
-        // Now append the Answer section.
-        // Answer:
-        // Name: a pointer to offset 12 (0xC00C)
-        baos.write(0xC0);
-        baos.write(0x0C);
-        // Type: A (0x0001)
-        baos.write(0x00);
-        baos.write(0x01);
-        // Class: IN (0x0001)
-        baos.write(0x00);
-        baos.write(0x01);
-        // TTL: set to 60 seconds (0x0000003C)
-        baos.write(0x00);
-        baos.write(0x00);
-        baos.write(0x00);
-        baos.write(0x3C);
-        // RDLENGTH: length of the RDATA for an A record is 4 bytes.
-        baos.write(0x00);
-        baos.write(0x04);
-        // RDATA: the IPv4 address (convert the replicaIP string to 4 bytes)
-        String[] parts = ipStr.split("\\.");
-        for (String part : parts) {
-            baos.write(Integer.parseInt(part));
-        }
-        return baos.toByteArray();
+    private void loadGeoTable() throws IOException {
+        Path path = Paths.get(DNSConfig.GEO_TABLE);
+        FileTime modified = Files.getLastModifiedTime(path);
+        if (modified.equals(geoTableModified)) {
+            return;
+        }
+        geoTableModified = modified; // a broken file is retried only once it changes again
+        PrefixTrie table = PrefixTrie.load(path);
+        ReplicaMapper.selector().setGeoTable(table);
+        System.out.println("Geo table " + path + " loaded (" + table.rankedListCount() + " replica rankings"
+                + (table.skippedNetworks() > 0 ? ", skipped " + table.skippedNetworks()
+                        + " networks longer than a client prefix" : "") + ")");
+    }
+
+    // Logs query counts once a minute when there was traffic, lets the replica selector
+    // take new measurements into account once per answer TTL, keeps the probe collector's
+    // clock, reloads the geo table when its file changes and shortens the answer TTL while
+    // the replica pool is changing.
+    private void startMaintenance() {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dns-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] lastQueries = { 0 };
+        reporter.scheduleAtFixedRate(() -> {
+            long total = queries.sum();
+            if (total != lastQueries[0]) {
+                lastQueries[0] = total;
+                System.out.println("DNS queries: " + total + " (answered " + answered.sum() + ", refused "
+                        + refused.sum() + ", nxdomain " + nxdomain.sum() + ", malformed " + malformed.sum()
+                        + ", client subnet " + clientSubnet.sum() + ", truncated " + truncated.sum()
+                        + ", over TCP " + tcpQueries.sum()
+                        + (probeCollector != null ? ", RTT samples " + probeCollector.samples.sum()
+                                + ", rejected reports " + probeCollector.rejected.sum() : "") + ")");
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+        int ttl = Math.max(1, DNSConfig.TTL_SECONDS);
+        reporter.scheduleAtFixedRate(ReplicaMapper.selector()::refresh, ttl, ttl, TimeUnit.SECONDS);
+        if (probeCollector != null) {
+            reporter.scheduleAtFixedRate(probeCollector::tick, 1, 1, TimeUnit.SECONDS);
+        }
+        if (registry != null) {
+            reporter.scheduleAtFixedRate(() -> answerCache.setTtlSeconds(
+                    registry.changing() ? DNSConfig.CHANGING_TTL_SECONDS : DNSConfig.TTL_SECONDS),
+                    1, 1, TimeUnit.SECONDS);
+        }
+        if (DNSConfig.GEO_TABLE != null) {
+            reporter.scheduleWithFixedDelay(() -> {
+                try {
+                    loadGeoTable();
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Geo table not reloaded: " + e.getMessage());
+                }
+            }, DNSConfig.GEO_TABLE_CHECK_SECONDS, DNSConfig.GEO_TABLE_CHECK_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Starts a separate HTTP server for monitoring: /metrics for Prometheus (query counts
+     * and the replica pool) and /health (the process is up).
+     */
+    private void startMetricsEndpoint(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.createContext("/health", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        ReplicaMetrics.simple(out, "dns_queries_total", "Datagrams received.", "counter", queries.sum());
+        ReplicaMetrics.simple(out, "dns_answered_total", "Queries for the CDN name.", "counter", answered.sum());
+        ReplicaMetrics.simple(out, "dns_refused_total", "Queries outside the zone.", "counter", refused.sum());
+        ReplicaMetrics.simple(out, "dns_nxdomain_total", "Queries for other names in the zone.", "counter",
+                nxdomain.sum());
+        ReplicaMetrics.simple(out, "dns_malformed_total", "Datagrams that did not parse.", "counter", malformed.sum());
+        ReplicaMetrics.simple(out, "dns_client_subnet_total", "Queries mapped by their EDNS Client Subnet.", "counter",
+                clientSubnet.sum());
+        ReplicaMetrics.simple(out, "dns_truncated_total", "UDP responses cut back with TC set.", "counter",
+                truncated.sum());
+        ReplicaMetrics.simple(out, "dns_tcp_queries_total", "Queries received over TCP.", "counter", tcpQueries.sum());
+        ReplicaMetrics.simple(out, "dns_tcp_connections", "Open TCP connections.", "gauge", tcpConnections.get());
+        ReplicaMetrics.simple(out, "dns_tcp_write_timeouts_total", "TCP connections closed for not taking responses.",
+                "counter", tcpWriteTimeouts.sum());
+        if (probeCollector != null) {
+            ReplicaMetrics.simple(out, "dns_rtt_samples_total", "RTT samples reported by the replicas.", "counter",
+                    probeCollector.samples.sum());
+            ReplicaMetrics.simple(out, "dns_rtt_reports_rejected_total",
+                    "RTT reports refused for not coming from the replica they name.", "counter",
+                    probeCollector.rejected.sum());
+        }
+        ReplicaMetrics.simple(out, "dns_answer_ttl_seconds", "TTL of the answers handed out now.", "gauge",
+                answerCache.ttlSeconds());
+        ReplicaMetrics.simple(out, "dns_mapping_generation", "Changes of the replica mapping since start.", "counter",
+                ReplicaMapper.generation());
+        if (registry != null) {
+            registry.appendMetrics(out);
+        }
+        return out.toString();
+    }
+
+    // Configuration settings for the DNS server.
+    public static class DNSConfig {
+        // Worker threads, each with its own channel when SO_REUSEPORT is available.
+        public static int THREADS = Runtime.getRuntime().availableProcessors();
+        public static boolean REUSE_PORT = true;
+        // TTL of the A records handed out.
+        public static int TTL_SECONDS = 60;
+        // Slots of the answer cache; about one per active client network is plenty.
+        public static int ANSWER_CACHE_SLOTS = 1 << 16;
+        // UDP payload size advertised in EDNS responses (the DNS flag day 2020 default).
+        public static int UDP_PAYLOAD_SIZE = 1232;
+        // Share of selections that try a random healthy replica instead of the fastest.
+        public static double EXPLORATION_RATE = ReplicaSelector.DEFAULT_EXPLORATION_RATE;
+        // TCP port where the replicas' RTT probers report (0: probing off), the address it is
+        // bound to (null: all interfaces), and how many recently seen client networks are
+        // kept for them to probe.
+        public static int PROBE_PORT = 0;
+        public static String PROBE_BIND_ADDRESS = null;
+        public static int PROBE_TARGET_SLOTS = 1 << 16;
+        // CSV table of networks and ranked replicas (see PrefixTrie; null for none), and how
+        // often its file is checked for changes.
+        public static String GEO_TABLE = null;
+        public static int GEO_TABLE_CHECK_SECONDS = 10;
+        // Replica pool file (see ReplicaRegistry; null keeps the built-in replicas), the port
+        // of the replicas' /ready endpoint for entries that name none (0: not checked), how
+        // often and how patiently the pool is checked, and the TTL handed out while it is
+        // changing.
+        public static String REPLICA_FILE = null;
+        public static int HEALTH_PORT = 0;
+        public static int HEALTH_CHECK_INTERVAL_SECONDS = 2;
+        public static int HEALTH_CHECK_TIMEOUT_MILLIS = 1000;
+        public static int CHANGING_TTL_SECONDS = 5;
+        // Port of the /metrics and /health endpoint; 0 disables it.
+        public static int METRICS_PORT = 0;
+        // DNS over TCP on the same port: on or off, accept backlog, open connections at most,
+        // and how long a connection may sit idle between queries or stall on a write.
+        public static boolean TCP = true;
+        public static int TCP_BACKLOG = 128;
+        public static int TCP_MAX_CONNECTIONS = 1024;
+        public static int TCP_IDLE_TIMEOUT_MILLIS = 10_000;
     }
 
     public static void main(String[] args) {
-        // Expect command-line arguments: -p <port> -n <name>
+        // Expect command-line arguments: -p <port> -n <name> [-t <threads>] [-x <explorationRate>] [-ttl <seconds>] [-pp <probePort>] [-pb <probeBindAddress>] [-g <geoTable.csv>] [-r <replicas.txt>] [-hp <healthPort>] [-m <metricsPort>] [-tcp <on|off>] [-ti <tcpIdleMs>]
         if (args.length < 4) {
-            System.err.println("Usage: ./dnsserver -p <port> -n <name>");
+            System.err.println("Usage: ./dnsserver -p <port> -n <name> [-t <threads>] [-x <explorationRate>] [-ttl <seconds>] [-pp <probePort>] [-pb <probeBindAddress>] [-g <geoTable.csv>] [-r <replicas.txt>] [-hp <healthPort>] [-m <metricsPort>] [-tcp <on|off>] [-ti <tcpIdleMs>]");
             System.exit(1);
         }
         int port = 0;
@@ -145,6 +569,39 @@ public class DNSServer {
             } else if ("-n".equals(args[i]) && i + 1 < args.length) {
                 name = args[i + 1];
                 i++;
+            } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.THREADS = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-x".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.EXPLORATION_RATE = Double.parseDouble(args[i + 1]);
+                i++;
+            } else if ("-ttl".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.TTL_SECONDS = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-pp".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.PROBE_PORT = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-pb".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.PROBE_BIND_ADDRESS = args[i + 1];
+                i++;
+            } else if ("-g".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.GEO_TABLE = args[i + 1];
+                i++;
+            } else if ("-r".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.REPLICA_FILE = args[i + 1];
+                i++;
+            } else if ("-hp".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.HEALTH_PORT = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-m".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.METRICS_PORT = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-tcp".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.TCP = !"off".equals(args[i + 1]);
+                i++;
+            } else if ("-ti".equals(args[i]) && i + 1 < args.length) {
+                DNSConfig.TCP_IDLE_TIMEOUT_MILLIS = Integer.parseInt(args[i + 1]);
+                i++;
             }
         }
         if (port == 0 || name == null) {
@@ -0,0 +1,429 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Second cache tier that keeps content bodies as files in a local directory.
+ *
+ * Each entry is one file named after the SHA-256 of its key and a generation, so a new
+ * version of an entry never overwrites a file a reader may have opened for the old one; an
+ * index file maps keys to files and is rewritten periodically, so a restarted replica
+ * comes back with its disk tier intact. Files are written on a background thread (miss latency is unaffected) and
+ * are read back through a FileChannel, which the serving engine can transfer to the socket
+ * without copying through the heap. Entries are evicted in LRU order once the directory
+ * exceeds its quota.
+ */
+public class DiskCache {
+
+    private static final String INDEX_FILE = "index.txt";
+    private static final String CONTENT_SUFFIX = ".bin";
+    private static final long INDEX_FLUSH_SECONDS = 5;
+
+    private final Path directory;
+    private final long quotaBytes;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // Guarded by this.
+    private final ContentCache.EvictionPolicy policy = new ContentCache.LruPolicy();
+    // Guarded by this.
+    private long usedBytes;
+    private volatile boolean indexDirty;
+    // Numbers the files, so every version of an entry gets a file of its own.
+    private final AtomicLong generation = new AtomicLong();
+    // Files of replaced entries, deleted once the index on disk no longer names them.
+    // Guarded by this.
+    private final List<Path> replaced = new ArrayList<>();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> daemon(r, "disk-cache-writer"));
+    private final ScheduledExecutorService indexFlusher =
+            Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "disk-cache-index"));
+
+    private DiskCache(Path directory, long quotaBytes) {
+        this.directory = directory;
+        this.quotaBytes = quotaBytes;
+    }
+
+    /**
+     * Opens (or creates) a disk cache in the given directory and reloads its index.
+     */
+    public static DiskCache open(Path directory, long quotaBytes) throws IOException {
+        Files.createDirectories(directory);
+        DiskCache diskCache = new DiskCache(directory, quotaBytes);
+        diskCache.loadIndex();
+        diskCache.indexFlusher.scheduleWithFixedDelay(diskCache::flushIndexQuietly,
+                INDEX_FLUSH_SECONDS, INDEX_FLUSH_SECONDS, TimeUnit.SECONDS);
+        return diskCache;
+    }
+
+    /**
+     * Returns the entry for the key and records the access, or null if it is not on disk.
+     */
+    public Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.hitNo.increment();
+            entry.lastAccess = System.currentTimeMillis();
+            synchronized (this) {
+                policy.onAccess(key);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Schedules the body to be written to disk. Returns immediately. Bodies larger than the
+     * whole quota are not stored at all.
+     */
+    public void putAsync(String key, ByteBuffer[] content, String contentType, String etag, long lastModified,
+            long expiresAt, long staleUntil) {
+        if (length(content) > quotaBytes) {
+            return;
+        }
+        writer.execute(() -> {
+            try {
+                put(key, content, contentType, etag, lastModified, expiresAt, staleUntil);
+            } catch (IOException e) {
+                System.err.println("Disk cache write failed for " + key + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Records a new lifetime for an entry whose body the origin confirmed as unchanged.
+     */
+    public void updateFreshness(String key, long expiresAt, long staleUntil) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.expiresAt = expiresAt;
+            entry.staleUntil = staleUntil;
+            indexDirty = true;
+        }
+    }
+
+    /**
+     * Opens the entry's file for reading. Because eviction only unlinks files and a new
+     * version of the entry goes to a new file, a channel opened here keeps reading this
+     * entry's bytes even if it is evicted or replaced while it is being served.
+     */
+    public FileChannel open(Entry entry) throws IOException {
+        return FileChannel.open(entry.file, StandardOpenOption.READ);
+    }
+
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        indexFlusher.shutdown();
+        flushIndexQuietly();
+    }
+
+    private void put(String key, ByteBuffer[] content, String contentType, String etag, long lastModified,
+            long expiresAt, long staleUntil) throws IOException {
+        long remaining = length(content);
+        if (remaining > quotaBytes) {
+            return; // would only evict everything else, then itself
+        }
+        Path file = directory.resolve(fileName(key, generation.getAndIncrement()));
+        Path tmp = directory.resolve(file.getFileName() + ".tmp");
+        long size = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (size < remaining) {
+                size += out.write(content);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        Entry entry = new Entry(key, file, size, System.currentTimeMillis(), contentType, etag, lastModified);
+        entry.expiresAt = expiresAt;
+        entry.staleUntil = staleUntil;
+        add(entry);
+    }
+
+    private synchronized void add(Entry entry) {
+        if (entry.size > quotaBytes) {
+            // Only possible for an index entry after the quota was lowered.
+            try {
+                Files.deleteIfExists(entry.file);
+            } catch (IOException e) {
+                System.err.println("Could not delete " + entry.file + ": " + e.getMessage());
+            }
+            return;
+        }
+        Entry previous = entries.put(entry.key, entry);
+        if (previous != null) {
+            usedBytes -= previous.size;
+            policy.onRemove(entry.key);
+            if (!previous.file.equals(entry.file)) {
+                replaced.add(previous.file);
+            }
+        }
+        usedBytes += entry.size;
+        policy.onInsert(entry.key, entry.size);
+        indexDirty = true;
+        while (usedBytes > quotaBytes) {
+            String victim = policy.victim();
+            if (victim == null) {
+                break;
+            }
+            policy.onRemove(victim);
+            Entry removed = entries.remove(victim);
+            if (removed != null) {
+                usedBytes -= removed.size;
+                try {
+                    Files.deleteIfExists(removed.file);
+                } catch (IOException e) {
+                    System.err.println("Could not delete " + removed.file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Index format: one line per entry,
+     * "size<TAB>lastAccessMillis<TAB>fileName<TAB>contentType<TAB>etag<TAB>lastModifiedMillis
+     * <TAB>expiresAtMillis<TAB>staleUntilMillis<TAB>key" ("-" for a missing content type or
+     * ETag, -1 for no Last-Modified). The key is written with '%', tab, CR and LF
+     * percent-encoded, since request paths may contain them. Damaged lines, and lines whose
+     * file is not one named after the key, are skipped and counted. Files without an
+     * index line (e.g. from a crash mid-write) are deleted.
+     */
+    private void loadIndex() throws IOException {
+        Path index = directory.resolve(INDEX_FILE);
+        List<Entry> loaded = new ArrayList<>();
+        int damaged = 0;
+        long lastGeneration = -1;
+        if (Files.exists(index)) {
+            try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 9);
+                    if (fields.length < 9) {
+                        damaged++;
+                        continue;
+                    }
+                    try {
+                        String contentType = !fields[3].equals("-") ? fields[3] : null;
+                        String etag = !fields[4].equals("-") ? fields[4] : null;
+                        String key = unescape(fields[8]);
+                        long fileGeneration = generationOf(key, fields[2]);
+                        if (fileGeneration < 0) {
+                            damaged++;
+                            continue;
+                        }
+                        lastGeneration = Math.max(lastGeneration, fileGeneration);
+                        Path file = directory.resolve(fields[2]);
+                        long size = Long.parseLong(fields[0]);
+                        if (Files.isRegularFile(file) && Files.size(file) == size) {
+                            Entry entry = new Entry(key, file, size, Long.parseLong(fields[1]), contentType,
+                                    etag, Long.parseLong(fields[5]));
+                            entry.expiresAt = Long.parseLong(fields[6]);
+                            entry.staleUntil = Long.parseLong(fields[7]);
+                            loaded.add(entry);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        damaged++; // a number or file name that does not parse
+                    }
+                }
+            }
+        }
+        generation.set(lastGeneration + 1);
+        // Re-insert oldest first so the LRU order survives the restart.
+        loaded.sort(Comparator.comparingLong(e -> e.lastAccess));
+        for (Entry entry : loaded) {
+            add(entry);
+        }
+        Set<Path> indexed = new HashSet<>();
+        for (Entry entry : entries.values()) {
+            indexed.add(entry.file.getFileName());
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + CONTENT_SUFFIX + "*")) {
+            for (Path file : files) {
+                if (!indexed.contains(file.getFileName())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        System.out.println("Disk cache loaded " + entries.size() + " entries (" + usedBytes() + " bytes) from " + directory
+                + (damaged > 0 ? ", skipped " + damaged + " damaged index lines" : ""));
+    }
+
+    private void flushIndexQuietly() {
+        if (!indexDirty) {
+            return;
+        }
+        indexDirty = false;
+        // Taken before the entries are written: the index written below names none of them.
+        List<Path> obsolete;
+        synchronized (this) {
+            obsolete = new ArrayList<>(replaced);
+            replaced.clear();
+        }
+        Path index = directory.resolve(INDEX_FILE);
+        Path tmp = directory.resolve(INDEX_FILE + ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Entry entry : entries.values()) {
+                    out.write(entry.size + "\t" + entry.lastAccess + "\t" + entry.file.getFileName() + "\t"
+                            + (entry.contentType == null ? "-" : entry.contentType) + "\t"
+                            + (entry.etag == null ? "-" : entry.etag) + "\t" + entry.lastModified + "\t"
+                            + entry.expiresAt + "\t" + entry.staleUntil + "\t" + escape(entry.key));
+                    out.newLine();
+                }
+            }
+            Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            indexDirty = true;
+            synchronized (this) {
+                replaced.addAll(obsolete);
+            }
+            System.err.println("Disk cache index write failed: " + e.getMessage());
+            return;
+        }
+        for (Path file : obsolete) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Could not delete " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Percent-encodes the characters that would break an index line (or any tab-separated
+    // line; CacheWarmer's snapshot uses it too).
+    static String escape(String key) {
+        StringBuilder sb = null;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '%' || c == '\t' || c == '\n' || c == '\r') {
+                if (sb == null) {
+                    sb = new StringBuilder(key.length() + 8).append(key, 0, i);
+                }
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? key : sb.toString();
+    }
+
+    // Reverses escape(); a malformed escape throws IllegalArgumentException.
+    static String unescape(String field) {
+        if (field.indexOf('%') < 0) {
+            return field;
+        }
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= field.length()) {
+                    throw new IllegalArgumentException("Truncated escape in " + field);
+                }
+                sb.append((char) Integer.parseInt(field.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long length(ByteBuffer[] content) {
+        long length = 0;
+        for (ByteBuffer chunk : content) {
+            length += chunk.remaining();
+        }
+        return length;
+    }
+
+    // "<SHA-256 of the key>-<generation>.bin"
+    private static String fileName(String key, long generation) {
+        return hash(key) + "-" + generation + CONTENT_SUFFIX;
+    }
+
+    // The generation of a file name made by fileName for the key, or -1 if it is not one.
+    private static long generationOf(String key, String fileName) {
+        String prefix = hash(key) + "-";
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(CONTENT_SUFFIX)) {
+            return -1;
+        }
+        long generation = Long.parseLong(fileName.substring(prefix.length(), fileName.length() - CONTENT_SUFFIX.length()));
+        return generation >= 0 ? generation : -1;
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    // One content file on disk.
+    static class Entry {
+        final String key;
+        final Path file;
+        final long size;
+        final String contentType; // may be null
+        final String etag; // may be null
+        final long lastModified; // epoch millis, -1 if unknown
+        final LongAdder hitNo = new LongAdder();
+        volatile long lastAccess;
+        // Freshness of the stored response (epoch millis); see Freshness.
+        volatile long expiresAt = -1;
+        volatile long staleUntil = -1;
+
+        Entry(String key, Path file, long size, long lastAccess, String contentType, String etag, long lastModified) {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+}
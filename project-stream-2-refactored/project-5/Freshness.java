@@ -0,0 +1,135 @@
+/**
+ * How long a cached response may be served, worked out from the origin's Cache-Control,
+ * Expires, Date and Age headers when the response was fetched (or revalidated).
+ *
+ * Until expiresAt the entry is fresh. Between expiresAt and staleUntil it may still be
+ * served, but only while a background revalidation runs (stale-while-revalidate). After
+ * staleUntil a request has to wait for the origin.
+ */
+public class Freshness {
+
+    // Largest delta-seconds value honoured; larger ones mean "as long as possible" (RFC 9111
+    // section 1.2.2) and would overflow once converted to milliseconds.
+    static final long MAX_DELTA_SECONDS = Integer.MAX_VALUE;
+    // An Expires header that is there but is no date, such as "0": already expired (RFC 9111
+    // section 5.3). Parsed dates are whole seconds, so neither this nor -1 is ever one.
+    static final long INVALID_EXPIRES = Long.MIN_VALUE;
+
+    final long fetchedAt;
+    final long expiresAt;
+    final long staleUntil;
+    // False for no-store and private responses, which a shared cache must not keep.
+    final boolean storable;
+
+    Freshness(long fetchedAt, long expiresAt, long staleUntil, boolean storable) {
+        this.fetchedAt = fetchedAt;
+        this.expiresAt = expiresAt;
+        this.staleUntil = Math.max(expiresAt, staleUntil);
+        this.storable = storable;
+    }
+
+    /**
+     * Computes freshness for a response received at now. s-maxage wins over max-age, which
+     * wins over Expires; without any of them defaultTtlMillis applies. The origin's
+     * stale-while-revalidate is used when given, otherwise defaultStaleMillis, except that
+     * no-cache, must-revalidate and proxy-revalidate responses are never served stale.
+     *
+     * @param expires Expires as epoch millis, -1 if absent, INVALID_EXPIRES if invalid
+     * @param date    Date as epoch millis, -1 if absent
+     * @param age     Age in seconds, -1 if absent
+     */
+    static Freshness fromHeaders(String cacheControl, long expires, long date, long age, long now,
+            long defaultTtlMillis, long defaultStaleMillis) {
+        boolean storable = true;
+        boolean noCache = false;
+        boolean mustRevalidate = false;
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        long staleWhileRevalidate = -1;
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                String[] parts = directive.trim().split("=", 2);
+                String name = parts[0].trim().toLowerCase();
+                long value = parts.length == 2 ? seconds(parts[1]) : -1;
+                switch (name) {
+                    case "no-store":
+                    case "private":
+                        storable = false;
+                        break;
+                    case "no-cache":
+                        noCache = true;
+                        break;
+                    case "must-revalidate":
+                    case "proxy-revalidate":
+                        mustRevalidate = true;
+                        break;
+                    case "max-age":
+                        maxAge = value;
+                        break;
+                    case "s-maxage":
+                        sharedMaxAge = value;
+                        break;
+                    case "stale-while-revalidate":
+                        staleWhileRevalidate = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        long ttlMillis;
+        if (noCache) {
+            ttlMillis = 0;
+        } else if (sharedMaxAge >= 0) {
+            ttlMillis = sharedMaxAge * 1000;
+        } else if (maxAge >= 0) {
+            ttlMillis = maxAge * 1000;
+        } else if (expires == INVALID_EXPIRES) {
+            ttlMillis = 0;
+        } else if (expires != -1) {
+            ttlMillis = Math.max(0, expires - (date != -1 ? date : now));
+        } else {
+            ttlMillis = defaultTtlMillis;
+        }
+        if (age > 0) {
+            ttlMillis = Math.max(0, ttlMillis - Math.min(age, MAX_DELTA_SECONDS) * 1000);
+        }
+        long staleMillis;
+        if (noCache || mustRevalidate) {
+            staleMillis = 0;
+        } else if (staleWhileRevalidate >= 0) {
+            staleMillis = staleWhileRevalidate * 1000;
+        } else {
+            staleMillis = defaultStaleMillis;
+        }
+        return new Freshness(now, now + ttlMillis, now + ttlMillis + staleMillis, storable);
+    }
+
+    boolean isFresh(long now) {
+        return now < expiresAt;
+    }
+
+    // Expired, but still within the stale-while-revalidate grace period.
+    boolean isServableStale(long now) {
+        return now >= expiresAt && now < staleUntil;
+    }
+
+    /**
+     * The time at which a hot entry should be refreshed so that the new copy is in place
+     * before this one expires: the given percentage of its lifetime before expiry.
+     */
+    long refreshAheadAt(int percent) {
+        return expiresAt - (expiresAt - fetchedAt) * percent / 100;
+    }
+
+    // Delta-seconds, capped at MAX_DELTA_SECONDS; malformed values count as 0, which errs on
+    // the side of revalidating.
+    private static long seconds(String value) {
+        String digits = value.trim().replace("\"", "");
+        try {
+            return Math.min(MAX_DELTA_SECONDS, Math.max(0, Long.parseLong(digits)));
+        } catch (NumberFormatException e) {
+            return !digits.isEmpty() && digits.chars().allMatch(Character::isDigit) ? MAX_DELTA_SECONDS : 0;
+        }
+    }
+}
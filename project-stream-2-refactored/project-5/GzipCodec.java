@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Gzip encoding and decoding of cached bodies held in (direct) ByteBuffers, plus the
+ * content negotiation helpers the replica needs to decide which variant to serve.
+ *
+ * Everything works buffer to buffer through Deflater/Inflater, so compressing a cached
+ * body or inflating it for a client that does not accept gzip never goes through a
+ * byte[] stream.
+ */
+public class GzipCodec {
+
+    // Magic, CM=deflate, no flags, no mtime, XFL=0, OS=unknown.
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    // Bodies smaller than this are not worth a second variant.
+    static final int MIN_COMPRESS_SIZE = 256;
+    // A gzip variant must save at least this fraction of the identity size to be kept.
+    static final double MAX_COMPRESSED_RATIO = 0.9;
+
+    // Receives decoded data; the slice is only valid until the call returns.
+    interface SliceConsumer {
+        void accept(ByteBuffer slice) throws IOException;
+    }
+
+    /**
+     * Whether a media type is likely to shrink under gzip. Images, video and archives are
+     * already compressed and are left alone.
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/")
+                || type.contains("javascript")
+                || type.contains("json")
+                || type.contains("xml")
+                || type.startsWith("image/svg")
+                || type.startsWith("application/wasm");
+    }
+
+    /**
+     * Whether an Accept-Encoding header allows gzip, honouring "q=0" exclusions and "*".
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            boolean allowed = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        allowed = Double.parseDouble(param.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        allowed = false;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                return allowed;
+            }
+            if (coding.equals("*")) {
+                wildcard = allowed;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * Gzips the body into a new direct buffer. Returns null if the result would not be at
+     * least {@link #MAX_COMPRESSED_RATIO} of the original size; the output buffer is capped
+     * at that size, so incompressible bodies are abandoned early.
+     */
+    static ByteBuffer gzip(ByteBuffer[] body, long length, int level) {
+        long cap = (long) (length * MAX_COMPRESSED_RATIO);
+        if (length < MIN_COMPRESS_SIZE || cap > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer out = ByteBuffer.allocateDirect((int) cap);
+        Deflater deflater = new Deflater(level, true);
+        CRC32 crc = new CRC32();
+        try {
+            if (out.remaining() < GZIP_HEADER.length + GZIP_TRAILER_SIZE) {
+                return null;
+            }
+            out.put(GZIP_HEADER);
+            for (ByteBuffer chunk : body) {
+                crc.update(chunk.duplicate());
+                deflater.setInput(chunk.duplicate());
+                while (!deflater.needsInput()) {
+                    deflater.deflate(out);
+                    if (out.remaining() < GZIP_TRAILER_SIZE) {
+                        return null;
+                    }
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(out);
+                if (out.remaining() < GZIP_TRAILER_SIZE) {
+                    return null;
+                }
+            }
+            putIntLE(out, (int) crc.getValue());
+            putIntLE(out, (int) length);
+            out.flip();
+            return out.asReadOnlyBuffer();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decodes a gzip member and hands the inflated data to the consumer in slices.
+     */
+    static void gunzip(ByteBuffer gzip, SliceConsumer consumer) throws IOException {
+        ByteBuffer in = gzip.duplicate();
+        skipHeader(in);
+        Inflater inflater = new Inflater(true);
+        ByteBuffer out = ByteBuffer.allocateDirect(INFLATE_BUFFER_SIZE);
+        try {
+            inflater.setInput(in);
+            while (!inflater.finished()) {
+                int n = inflater.inflate(out);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated gzip body");
+                }
+                if (!out.hasRemaining() || inflater.finished()) {
+                    out.flip();
+                    consumer.accept(out);
+                    out.clear();
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void skipHeader(ByteBuffer in) throws IOException {
+        if (in.remaining() < GZIP_HEADER.length || in.get() != 0x1f || in.get() != (byte) 0x8b || in.get() != 8) {
+            throw new IOException("Not a gzip body");
+        }
+        int flags = in.get() & 0xFF;
+        in.position(in.position() + 6); // mtime, xfl, os
+        if ((flags & FEXTRA) != 0) {
+            int xlen = (in.get() & 0xFF) | ((in.get() & 0xFF) << 8);
+            in.position(in.position() + xlen);
+        }
+        if ((flags & FNAME) != 0) {
+            while (in.get() != 0) {
+                // skip file name
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (in.get() != 0) {
+                // skip comment
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            in.position(in.position() + 2);
+        }
+    }
+
+    private static void putIntLE(ByteBuffer out, int value) {
+        out.put((byte) value);
+        out.put((byte) (value >>> 8));
+        out.put((byte) (value >>> 16));
+        out.put((byte) (value >>> 24));
+    }
+}
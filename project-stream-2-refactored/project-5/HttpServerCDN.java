@@ -1,24 +1,41 @@
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.*;
 import java.net.*;
-import java.util.LinkedHashMap;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
 
 public class HTTPServerCDN {
 
-    // In-memory cache using an LRU strategy.
-    // Key: URL path; Value: CachedContent
-    private static final int CACHE_CAPACITY = 10; // maximum number of entries
-    private static final Map<String, CachedContent> cache = new LinkedHashMap<String, CachedContent>(CACHE_CAPACITY, 0.75f, true) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<String, CachedContent> eldest) {
-            return size() > CACHE_CAPACITY;
-        }
-    };
-
     // The origin server from which to fetch content if not cached.
     private final String originServer;
 
@@ -31,15 +48,185 @@ public class HTTPServerCDN {
     }
 
     public void start() throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        System.out.println("HTTP Server (CDN Replica) started on port " + port);
-        server.createContext("/", new CDNHandler());
-        server.setExecutor(null); // default executor
-        server.start();
+        // In-memory cache bounded by total body size, W-TinyLFU (default) or LRU eviction.
+        // Key: URL path; Value: CachedContent
+        ContentCache.EvictionPolicy policy = "lru".equals(CDNConfig.EVICTION_POLICY)
+                ? new ContentCache.LruPolicy()
+                : new WTinyLfuPolicy(CDNConfig.CACHE_BYTES);
+        ContentCache cache = new ContentCache(CDNConfig.CACHE_BYTES, policy);
+        // Optional disk tier below the memory cache, kept across restarts.
+        DiskCache diskCache = null;
+        if (CDNConfig.DISK_CACHE_DIR != null) {
+            diskCache = DiskCache.open(Paths.get(CDNConfig.DISK_CACHE_DIR), CDNConfig.DISK_QUOTA_BYTES);
+            Runtime.getRuntime().addShutdownHook(new Thread(diskCache::close));
+        }
+        OriginClient origin = new OriginClient(CDNConfig.ORIGIN_SERVER, CDNConfig.ORIGIN_MAX_CONNECTIONS,
+                CDNConfig.ORIGIN_CONNECT_TIMEOUT_MILLIS, CDNConfig.ORIGIN_READ_TIMEOUT_MILLIS,
+                CDNConfig.ORIGIN_ACQUIRE_TIMEOUT_MILLIS, CDNConfig.ORIGIN_IDLE_TIMEOUT_MILLIS);
+        ReplicaMetrics metrics = new ReplicaMetrics();
+        CDNHandler handler = new CDNHandler(cache, diskCache, origin, metrics);
+        if (CDNConfig.PEERS != null) {
+            String self = CDNConfig.PEER_SELF != null ? CDNConfig.PEER_SELF : "localhost:" + port;
+            handler.joinPeers(self, CDNConfig.PEERS);
+        }
+        // Warm start: snapshot the hot set periodically and reload it after a restart.
+        CacheWarmer warmer = null;
+        List<CacheWarmer.HotKey> hotKeys = Collections.emptyList();
+        if (CDNConfig.SNAPSHOT_FILE != null) {
+            warmer = new CacheWarmer(cache, Paths.get(CDNConfig.SNAPSHOT_FILE), CDNConfig.SNAPSHOT_KEYS);
+            hotKeys = warmer.load();
+            warmer.startSnapshots(CDNConfig.SNAPSHOT_INTERVAL_SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(warmer::snapshotQuietly));
+            if (!hotKeys.isEmpty() && CDNConfig.PREWARM_COUNT > 0) {
+                handler.ready = false;
+            }
+        }
+        if ("vthread".equals(CDNConfig.ENGINE)) {
+            // One virtual thread per connection: a slow origin fetch only parks its own client.
+            VirtualThreadHttpServer server = new VirtualThreadHttpServer(new InetSocketAddress(port), handler,
+                    CDNConfig.MAX_CONNECTIONS, CDNConfig.IDLE_TIMEOUT_MILLIS);
+            server.start();
+        } else {
+            // The JDK server multiplexes connections on a selector; requests run on a worker pool
+            // so that a cache miss does not block the dispatcher thread. Nagle's algorithm is
+            // off: the server writes headers and body separately, which would otherwise wait
+            // out the client's delayed ACK on every response.
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+            HttpServer server = HttpServer.create(new InetSocketAddress(port), CDNConfig.BACKLOG);
+            server.createContext("/", handler);
+            server.setExecutor(Executors.newFixedThreadPool(CDNConfig.WORKER_THREADS));
+            server.start();
+        }
+        System.out.println("HTTP Server (CDN Replica) started on port " + port + " using " + CDNConfig.ENGINE + " engine");
+        if (CDNConfig.METRICS_PORT > 0) {
+            registerGauges(metrics, cache, diskCache, origin, handler);
+            // Load: requests in flight per request the engine can serve at once.
+            double capacity = "vthread".equals(CDNConfig.ENGINE) ? CDNConfig.MAX_CONNECTIONS : CDNConfig.WORKER_THREADS;
+            metrics.startEndpoint(CDNConfig.METRICS_PORT, () -> handler.ready, () -> metrics.inFlight.sum() / capacity);
+            System.out.println("Metrics endpoint started on port " + CDNConfig.METRICS_PORT);
+        }
+        if (!handler.ready) {
+            startPrewarm(warmer, hotKeys, handler);
+        }
+        // RTT probing for the DNS server's replica selection.
+        if (CDNConfig.PROBE_COLLECTOR != null) {
+            String collector = CDNConfig.PROBE_COLLECTOR;
+            int colon = collector.lastIndexOf(':');
+            RttProber.ProbeConfig probeConfig = new RttProber.ProbeConfig();
+            probeConfig.injectedDelayMillis = CDNConfig.PROBE_INJECTED_DELAY_MILLIS;
+            new RttProber(new InetSocketAddress(collector.substring(0, colon), Integer.parseInt(collector.substring(colon + 1))),
+                    CDNConfig.PROBE_REPLICA_ADDRESS, probeConfig).start();
+            System.out.println("RTT prober reporting to " + collector + " as " + CDNConfig.PROBE_REPLICA_ADDRESS);
+        }
+    }
+
+    /**
+     * Loads the hottest keys of the last snapshot in the background, from a peer replica if
+     * one is configured, and marks the replica ready when done (or when the time is up).
+     * Requests are served meanwhile; only the readiness check reports the warm-up.
+     */
+    private static void startPrewarm(CacheWarmer warmer, List<CacheWarmer.HotKey> hotKeys, CDNHandler handler) {
+        OriginClient peer = CDNConfig.PREWARM_PEER == null ? null
+                : new OriginClient(CDNConfig.PREWARM_PEER, CDNConfig.PREWARM_CONCURRENCY,
+                        CDNConfig.ORIGIN_CONNECT_TIMEOUT_MILLIS, CDNConfig.ORIGIN_READ_TIMEOUT_MILLIS,
+                        CDNConfig.ORIGIN_ACQUIRE_TIMEOUT_MILLIS, CDNConfig.ORIGIN_IDLE_TIMEOUT_MILLIS);
+        Thread prewarm = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            int loaded = warmer.prewarm(hotKeys, CDNConfig.PREWARM_COUNT, CDNConfig.PREWARM_CONCURRENCY,
+                    CDNConfig.PREWARM_TIMEOUT_SECONDS * 1000, (path, hits) -> handler.prewarm(path, hits, peer));
+            handler.ready = true;
+            System.out.println("Prewarmed " + loaded + " of " + Math.min(hotKeys.size(), CDNConfig.PREWARM_COUNT)
+                    + " hot entries in " + (System.currentTimeMillis() - start) + " ms; replica ready");
+        }, "cache-prewarm-coordinator");
+        prewarm.setDaemon(true);
+        prewarm.start();
+    }
+
+    // Exposes cache occupancy and origin pool usage next to the request metrics.
+    private static void registerGauges(ReplicaMetrics metrics, ContentCache cache, DiskCache diskCache,
+            OriginClient origin, CDNHandler handler) {
+        metrics.gauge("cdn_cache_bytes", "Body bytes held by the memory cache.", cache::sizeInBytes);
+        metrics.gauge("cdn_cache_max_bytes", "Byte budget of the memory cache.", cache::maxBytes);
+        metrics.gauge("cdn_cache_entries", "Entries in the memory cache.", cache::size);
+        if (diskCache != null) {
+            metrics.gauge("cdn_disk_cache_bytes", "Bytes held by the disk cache.", diskCache::usedBytes);
+            metrics.gauge("cdn_disk_cache_entries", "Entries in the disk cache.", diskCache::size);
+        }
+        metrics.gauge("cdn_origin_connections_in_use", "Origin connections carrying a request.", origin::inFlight);
+        metrics.gauge("cdn_origin_connections_idle", "Idle pooled origin connections.", origin::idleConnections);
+        metrics.gauge("cdn_origin_waiting", "Requests waiting for an origin connection.", origin::waiting);
+        metrics.counter("cdn_origin_requests_total", "Requests sent to the origin.", origin::requests);
+        metrics.counter("cdn_origin_connections_opened_total", "Origin connections opened.",
+                origin::connectionsOpened);
+        metrics.counter("cdn_origin_connections_reused_total", "Origin requests sent on a reused connection.",
+                origin::connectionsReused);
+        metrics.counter("cdn_origin_acquire_timeouts_total", "Requests that gave up waiting for a connection.",
+                origin::acquireTimeouts);
+        metrics.counter("cdn_origin_read_timeouts_total", "Origin reads that timed out.", origin::readTimeouts);
+        metrics.gauge("cdn_ready", "1 once the replica is ready for traffic.", () -> handler.ready ? 1 : 0);
     }
 
     // Handler for incoming HTTP requests.
     static class CDNHandler implements HttpHandler {
+        private final ContentCache cache;
+        // May be null when the replica runs without a disk tier.
+        private final DiskCache diskCache;
+        private final OriginClient origin;
+        // Origin fetches in progress, so concurrent misses for one path share a single fetch.
+        private final ConcurrentHashMap<String, CompletableFuture<CachedContent>> inFlight = new ConcurrentHashMap<>();
+        // Paths with a background revalidation queued or running.
+        private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+        // Runs background revalidations and refresh-ahead timers.
+        private final ScheduledExecutorService refresher;
+        // False while a warm start is still loading the cache.
+        volatile boolean ready = true;
+        private final ReplicaMetrics metrics;
+        // Cooperative caching: which replica owns which path, and clients for the other
+        // replicas. Null when the replica runs alone.
+        private ConsistentHashRing peerRing;
+        private String self;
+        private final Map<String, OriginClient> peers = new HashMap<>();
+        private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+        static final String READY_PATH = "/_cdn/ready";
+        // Marks a request forwarded by another replica; carries the sender's address.
+        static final String PEER_HEADER = "X-CDN-Peer";
+        // On responses to peers: how often the owner has served the entry.
+        static final String PEER_HITS_HEADER = "X-CDN-Hits";
+
+        CDNHandler(ContentCache cache, DiskCache diskCache, OriginClient origin, ReplicaMetrics metrics) {
+            this.cache = cache;
+            this.diskCache = diskCache;
+            this.origin = origin;
+            this.metrics = metrics;
+            this.refresher = Executors.newScheduledThreadPool(CDNConfig.REFRESH_THREADS, r -> {
+                Thread t = new Thread(r, "cache-refresher");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        /**
+         * Makes this replica one of a group that shares its caches. Every member hashes paths
+         * onto the same ring of member addresses; a member that misses on a path it does not
+         * own asks the owner before the origin, so the group fetches each object from the
+         * origin about once instead of once per replica.
+         */
+        void joinPeers(String self, List<String> members) {
+            List<String> nodes = new ArrayList<>(members);
+            if (!nodes.contains(self)) {
+                nodes.add(self);
+            }
+            this.self = self;
+            this.peerRing = new ConsistentHashRing(nodes);
+            for (String member : nodes) {
+                if (!member.equals(self)) {
+                    peers.put(member, new OriginClient(member, CDNConfig.ORIGIN_MAX_CONNECTIONS,
+                            CDNConfig.ORIGIN_CONNECT_TIMEOUT_MILLIS, CDNConfig.ORIGIN_READ_TIMEOUT_MILLIS,
+                            CDNConfig.ORIGIN_ACQUIRE_TIMEOUT_MILLIS, CDNConfig.ORIGIN_IDLE_TIMEOUT_MILLIS));
+                }
+            }
+        }
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             // Only handle GET requests.
@@ -47,72 +234,1044 @@ public class HTTPServerCDN {
                 exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
                 return;
             }
-            String path = exchange.getRequestURI().getPath();
-            System.out.println("HTTP GET: " + path);
-            byte[] content;
-            synchronized (cache) {
-                CachedContent cached = cache.get(path);
-                if (cached != null) {
-                    // Cache hit: update hit count and use cached content.
-                    cached.hitNo++;
-                    content = cached.content;
-                    System.out.println("Cache hit for " + path + " (hits: " + cached.hitNo + ")");
+            URI uri = exchange.getRequestURI();
+            String decoded = uri.getPath();
+            if (decoded == null || decoded.indexOf('\r') >= 0 || decoded.indexOf('\n') >= 0
+                    || decoded.indexOf('\0') >= 0) {
+                exchange.sendResponseHeaders(400, -1); // no line breaks for the origin to misread
+                return;
+            }
+            // The key and the origin's request target: the path and query as the client encoded
+            // them, so escapes such as %20 stay escapes on the way to the origin.
+            String path = uri.getRawQuery() == null ? uri.getRawPath() : uri.getRawPath() + "?" + uri.getRawQuery();
+            if (READY_PATH.equals(path)) {
+                // Readiness check for load balancers and the DNS tier.
+                exchange.sendResponseHeaders(ready ? 200 : 503, -1);
+                return;
+            }
+            long start = System.nanoTime();
+            ReplicaMetrics.Result result = ReplicaMetrics.Result.ERROR;
+            metrics.inFlight.increment();
+            try {
+                result = serve(exchange, path);
+            } finally {
+                metrics.inFlight.decrement();
+                metrics.recordRequest(result, System.nanoTime() - start);
+            }
+        }
+
+        private ReplicaMetrics.Result serve(HttpExchange exchange, String path) throws IOException {
+            ReplicaMetrics.Result result = ReplicaMetrics.Result.HIT;
+            long now = System.currentTimeMillis();
+            CachedContent content;
+            CachedContent cached = cache.get(path);
+            if (cached != null) {
+                Freshness freshness = cached.freshness;
+                if (freshness.isFresh(now)) {
+                    scheduleRefreshAhead(path, cached, now);
+                } else if (freshness.isServableStale(now)) {
+                    // Serve the expired copy right away; the origin is asked in the background.
+                    refreshAsync(path);
+                    result = ReplicaMetrics.Result.STALE;
+                } else {
+                    cached = null; // too stale: revalidate before answering
+                }
+            }
+            if (cached == null && diskCache != null) {
+                DiskCache.Entry onDisk = diskCache.get(path);
+                if (onDisk != null && now < onDisk.staleUntil) {
+                    if (now >= onDisk.expiresAt) {
+                        refreshAsync(path);
+                    }
+                    if (sendFromDisk(exchange, onDisk)) {
+                        return ReplicaMetrics.Result.DISK;
+                    }
+                }
+            }
+            if (cached != null) {
+                // Cache hit: the cache has already counted the hit.
+                content = cached;
+            } else {
+                // Cache miss: fetch content from origin server outside of any lock.
+                result = ReplicaMetrics.Result.MISS;
+                ClientSink sink = new ClientSink(exchange, metrics.bytesServed);
+                try {
+                    content = loadCoalesced(path, sink, false,
+                            exchange.getRequestHeaders().containsKey(PEER_HEADER));
+                } catch (IOException e) {
+                    if (sink.started()) {
+                        throw e; // body already under way: abort the connection
+                    }
+                    int status = 502;
+                    if (e instanceof OriginStatusException && ((OriginStatusException) e).status == 404) {
+                        status = 404;
+                    } else if (e instanceof OriginClient.SaturatedException) {
+                        status = 503; // origin protection: shed the request instead of queueing
+                    }
+                    exchange.sendResponseHeaders(status, -1);
+                    return status == 404 ? ReplicaMetrics.Result.MISS : ReplicaMetrics.Result.ERROR;
+                }
+                if (sink.started()) {
+                    // This request led the fetch and has already streamed the body.
+                    sink.rethrowFailure();
+                    return result;
+                }
+            }
+            sendCached(exchange, content);
+            return result;
+        }
+
+        /**
+         * Sends a cached body, choosing the gzip variant for clients that accept it. On the
+         * vthread engine the headers and the body chunks leave in one gathering write straight
+         * from the direct buffers; the JDK engine only offers an OutputStream, so there the
+         * chunks are copied out in pieces. Conditional requests are answered with 304 and
+         * range requests on the identity body with 206, both without copying the entry.
+         */
+        private void sendCached(HttpExchange exchange, CachedContent content) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            Freshness freshness = content.freshness;
+            peerHeaders(exchange, freshness.storable, freshness.expiresAt, freshness.staleUntil, content.hitNo.sum());
+            ByteBuffer gzip = content.gzipBody();
+            boolean sendGzip = gzip != null && GzipCodec.acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            if (gzip != null) {
+                headers.set("Vary", "Accept-Encoding");
+            }
+            String etag = sendGzip ? content.gzipETag() : content.etag;
+            if (notModified(exchange, etag, content.lastModified)) {
+                return;
+            }
+            if (content.contentType != null) {
+                headers.set("Content-Type", content.contentType);
+            }
+            if (sendGzip) {
+                headers.set("Content-Encoding", "gzip");
+                sendBuffers(exchange, new ByteBuffer[] { gzip }, gzip.remaining());
+                return;
+            }
+            if (!content.hasIdentity()) {
+                // Only the gzip variant is cached: inflate it on the way out. Range requests
+                // get the whole body here, which HTTP allows.
+                ClientSink sink = new ClientSink(exchange, metrics.bytesServed);
+                sink.start(content.length, null);
+                GzipCodec.gunzip(gzip, slice -> {
+                    sink.write(slice);
+                    sink.rethrowFailure();
+                });
+                sink.end();
+                sink.rethrowFailure();
+                return;
+            }
+            List<ByteRange> ranges = requestedRanges(exchange, etag, content.lastModified, content.length);
+            if (ranges == null) {
+                sendBuffers(exchange, content.body(), content.length);
+            } else {
+                sendRanges(exchange, ranges, content.length, content.contentType,
+                        (from, to) -> writeBuffers(exchange, content.body(from, to)));
+            }
+        }
+
+        private void sendBuffers(HttpExchange exchange, ByteBuffer[] body, long length) throws IOException {
+            exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+            writeBuffers(exchange, body);
+            exchange.getResponseBody().close();
+        }
+
+        private void writeBuffers(HttpExchange exchange, ByteBuffer[] body) throws IOException {
+            long bytes = 0;
+            for (ByteBuffer chunk : body) {
+                bytes += chunk.remaining();
+            }
+            metrics.bytesServed.add(bytes);
+            if (exchange instanceof VirtualThreadHttpServer.ChannelExchange) {
+                ((VirtualThreadHttpServer.ChannelExchange) exchange).write(body);
+            } else {
+                WritableByteChannel out = Channels.newChannel(exchange.getResponseBody());
+                for (ByteBuffer chunk : body) {
+                    while (chunk.hasRemaining()) {
+                        out.write(chunk);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Serves a body from the disk tier. The vthread engine transfers the file straight to
+         * the socket; the JDK engine writes a read-only mapping of it. Returns false if the
+         * file disappeared (evicted) before it could be opened.
+         */
+        private boolean sendFromDisk(HttpExchange exchange, DiskCache.Entry entry) throws IOException {
+            FileChannel file;
+            try {
+                file = diskCache.open(entry);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            try (file) {
+                peerHeaders(exchange, true, entry.expiresAt, entry.staleUntil, entry.hitNo.sum());
+                if (notModified(exchange, entry.etag, entry.lastModified)) {
+                    return true;
+                }
+                if (entry.contentType != null) {
+                    exchange.getResponseHeaders().set("Content-Type", entry.contentType);
+                }
+                RangeWriter body = (from, to) -> {
+                    metrics.bytesServed.add(to - from);
+                    if (exchange instanceof VirtualThreadHttpServer.ChannelExchange) {
+                        ((VirtualThreadHttpServer.ChannelExchange) exchange).transferFrom(file, from, to - from);
+                    } else if (to > from) {
+                        MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+                        Channels.newChannel(exchange.getResponseBody()).write(mapped);
+                    }
+                };
+                List<ByteRange> ranges = requestedRanges(exchange, entry.etag, entry.lastModified, entry.size);
+                if (ranges != null) {
+                    sendRanges(exchange, ranges, entry.size, entry.contentType, body);
+                    return true;
+                }
+                exchange.sendResponseHeaders(200, entry.size == 0 ? -1 : entry.size);
+                body.write(0, entry.size);
+            }
+            exchange.getResponseBody().close();
+            return true;
+        }
+
+        // Writes bytes [from, to) of a representation to the response body.
+        private interface RangeWriter {
+            void write(long from, long to) throws IOException;
+        }
+
+        /**
+         * Sets the validators and, if the request's If-None-Match or If-Modified-Since shows
+         * the client already has this representation, sends 304 and returns true.
+         * If-None-Match takes precedence, as HTTP requires. A null etag or a negative
+         * lastModified means the entry has no such validator.
+         */
+        private boolean notModified(HttpExchange exchange, String etag, long lastModified) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            if (etag != null) {
+                headers.set("ETag", etag);
+            }
+            if (lastModified >= 0) {
+                headers.set("Last-Modified", formatHttpDate(lastModified));
+            }
+            Headers request = exchange.getRequestHeaders();
+            String ifNoneMatch = request.getFirst("If-None-Match");
+            boolean notModified;
+            if (ifNoneMatch != null) {
+                notModified = etag != null && etagListMatches(ifNoneMatch, etag);
+            } else {
+                long since = parseHttpDate(request.getFirst("If-Modified-Since"));
+                // HTTP dates have one-second resolution.
+                notModified = since >= 0 && lastModified >= 0 && lastModified / 1000 <= since / 1000;
+            }
+            if (notModified) {
+                metrics.notModified.increment();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.getResponseBody().close();
+            }
+            return notModified;
+        }
+
+        /**
+         * Returns the ranges to send, null to send the whole representation (no usable Range
+         * header, or an If-Range that no longer matches), or sends 416 and returns an empty
+         * list when nothing requested lies within the body.
+         */
+        private static List<ByteRange> requestedRanges(HttpExchange exchange, String etag, long lastModified, long length)
+                throws IOException {
+            Headers request = exchange.getRequestHeaders();
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            List<ByteRange> ranges = ByteRange.parse(request.getFirst("Range"), length);
+            if (ranges == null) {
+                return null;
+            }
+            String ifRange = request.getFirst("If-Range");
+            if (ifRange != null) {
+                // If-Range needs a strong match: an ETag, or exactly the Last-Modified date.
+                boolean matches = ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/")
+                        ? etag != null && !etag.startsWith("W/") && ifRange.trim().equals(etag)
+                        : lastModified >= 0 && parseHttpDate(ifRange) / 1000 == lastModified / 1000;
+                if (!matches) {
+                    return null;
+                }
+            }
+            if (ranges.isEmpty()) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.getResponseBody().close();
+            }
+            return ranges;
+        }
+
+        /**
+         * Sends a 206 response: a single range as is, several as multipart/byteranges. The
+         * overall length is known up front, so the response keeps a Content-Length.
+         */
+        private void sendRanges(HttpExchange exchange, List<ByteRange> ranges, long length, String contentType,
+                RangeWriter body) throws IOException {
+            if (ranges.isEmpty()) {
+                return; // already answered with 416
+            }
+            metrics.partialContent.increment();
+            Headers headers = exchange.getResponseHeaders();
+            if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                headers.set("Content-Range", range.contentRange(length));
+                exchange.sendResponseHeaders(206, range.length());
+                body.write(range.first, range.last + 1);
+                exchange.getResponseBody().close();
+                return;
+            }
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+            ByteBuffer[] heads = new ByteBuffer[ranges.size()];
+            ByteBuffer tail = ByteRange.closingBoundary(boundary);
+            long total = tail.remaining();
+            for (int i = 0; i < heads.length; i++) {
+                heads[i] = ByteRange.partHead(boundary, contentType, ranges.get(i), length);
+                total += heads[i].remaining() + ranges.get(i).length();
+            }
+            headers.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            exchange.sendResponseHeaders(206, total);
+            for (int i = 0; i < heads.length; i++) {
+                writeBuffers(exchange, new ByteBuffer[] { heads[i] });
+                body.write(ranges.get(i).first, ranges.get(i).last + 1);
+            }
+            writeBuffers(exchange, new ByteBuffer[] { tail });
+            exchange.getResponseBody().close();
+        }
+
+        // Weak comparison, as If-None-Match uses: W/ prefixes are ignored.
+        private static boolean etagListMatches(String header, String etag) {
+            String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+            for (String candidate : header.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*")) {
+                    return true;
+                }
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals(opaque)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Loads a missing or expired path into the cache. The first caller for a path becomes
+         * the leader and fetches from the origin, streaming the body to its own client through
+         * the sink as it arrives; callers arriving while that fetch is running wait for its
+         * result instead of starting their own, and are counted as cache hits. An expired
+         * entry is revalidated with a conditional request, so an unchanged body is not
+         * transferred again. With revalidate set the origin is asked even if the cached copy
+         * is still fresh (refresh-ahead). An origin failure leaves the cache as it was.
+         * With peers, the body comes from the replica that owns the path (see fetchUpstream)
+         * and is only kept here once the owner reports it as hot.
+         */
+        private CachedContent loadCoalesced(String path, ClientSink sink, boolean revalidate, boolean fromPeer)
+                throws IOException {
+            CompletableFuture<CachedContent> flight = new CompletableFuture<>();
+            CompletableFuture<CachedContent> existing = inFlight.putIfAbsent(path, flight);
+            if (existing != null) {
+                CachedContent shared = await(existing);
+                cache.recordHit(path, shared);
+                return shared;
+            }
+            try {
+                CachedContent current = cache.peek(path);
+                CachedContent loaded;
+                if (current != null && !revalidate && current.freshness.isFresh(System.currentTimeMillis())) {
+                    // A previous leader filled or refreshed the cache between our miss and putIfAbsent.
+                    cache.recordHit(path, current);
+                    loaded = current;
+                } else {
+                    CachedContent fetched = fetchUpstream(path, sink, current, fromPeer);
+                    if (fetched == current) {
+                        // Not modified: the cached body stays, with a new lifetime.
+                        loaded = current;
+                        if (diskCache != null) {
+                            diskCache.updateFreshness(path, current.freshness.expiresAt, current.freshness.staleUntil);
+                        }
+                    } else if (fetched.peerHits >= 0 && fetched.peerHits < CDNConfig.PEER_REPLICATE_HITS) {
+                        // Still cheap to get from the owner: do not spend memory on a copy.
+                        cache.remove(path);
+                        loaded = fetched;
+                    } else {
+                        loaded = store(path, fetched);
+                    }
+                }
+                flight.complete(loaded);
+                return loaded;
+            } catch (IOException | RuntimeException e) {
+                flight.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(path, flight);
+            }
+        }
+
+        /**
+         * Caches a freshly fetched body in memory (compressed as configured) and on disk, and
+         * returns the entry to serve. no-store and private bodies are returned but not kept.
+         */
+        private CachedContent store(String path, CachedContent fetched) {
+            Freshness freshness = fetched.freshness;
+            if (!freshness.storable) {
+                cache.remove(path);
+                return fetched;
+            }
+            // Compress after the leader's client has its response, not before.
+            CachedContent loaded = fetched.compressed(CDNConfig.COMPRESSION);
+            cache.put(path, loaded);
+            if (diskCache != null) {
+                diskCache.putAsync(path, fetched.body(), fetched.contentType, fetched.etag,
+                        fetched.lastModified, freshness.expiresAt, freshness.staleUntil);
+            }
+            return loaded;
+        }
+
+        /**
+         * Loads one path into the memory cache ahead of demand and credits it with the hits
+         * it had before the restart. A copy on the disk tier that may still be served is
+         * read from there; otherwise the body comes from the peer replica, if one is given
+         * and has it, or from the origin. Returns false if the path was not cached.
+         */
+        boolean prewarm(String path, long hits, OriginClient peer) throws IOException {
+            if (cache.peek(path) != null) {
+                return true;
+            }
+            CachedContent loaded = null;
+            if (diskCache != null) {
+                DiskCache.Entry onDisk = diskCache.get(path);
+                if (onDisk != null && System.currentTimeMillis() < onDisk.staleUntil) {
+                    loaded = readFromDisk(path, onDisk);
+                }
+            }
+            if (loaded == null && peer != null) {
+                try {
+                    loaded = store(path, fetchFromOrigin(peer, path, ClientSink.discarding(), null));
+                } catch (IOException e) {
+                    // The peer does not have it or is unavailable: ask the origin instead.
+                }
+            }
+            if (loaded == null) {
+                loaded = store(path, fetchFromOrigin(origin, path, ClientSink.discarding(), null));
+            }
+            cache.recordHits(path, loaded, hits);
+            return cache.peek(path) == loaded;
+        }
+
+        // Reads a disk tier entry back into memory, or returns null if it is gone or too large.
+        private CachedContent readFromDisk(String path, DiskCache.Entry entry) throws IOException {
+            if (entry.size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer body = ByteBuffer.allocateDirect((int) entry.size);
+            try (FileChannel file = diskCache.open(entry)) {
+                while (body.hasRemaining()) {
+                    if (file.read(body, body.position()) < 0) {
+                        return null;
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            body.flip();
+            CachedContent content = new CachedContent(path, entry.contentType, new ByteBuffer[] { body },
+                    entry.etag, entry.lastModified);
+            content.refreshed(new Freshness(System.currentTimeMillis(), entry.expiresAt, entry.staleUntil, true));
+            CachedContent loaded = content.compressed(CDNConfig.COMPRESSION);
+            cache.put(path, loaded);
+            return loaded;
+        }
+
+        private static CachedContent await(CompletableFuture<CachedContent> flight) throws IOException {
+            try {
+                return flight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Fetches a path from the replica that owns it, falling back to the origin when the
+         * owner is down or overloaded. The owner itself, and a replica answering a request
+         * forwarded by a peer, go to the origin directly, so a request is forwarded at most
+         * once even while members disagree about the ring.
+         */
+        private CachedContent fetchUpstream(String path, ClientSink sink, CachedContent current, boolean fromPeer)
+                throws IOException {
+            OriginClient owner = peerRing == null || fromPeer ? null : peers.get(peerRing.owner(path));
+            if (owner != null) {
+                try {
+                    return fetchFromOrigin(owner, path, sink, current);
+                } catch (IOException e) {
+                    if (sink.started() || (e instanceof OriginStatusException
+                            && ((OriginStatusException) e).status == 404)) {
+                        throw e; // mid-body, or the owner already asked the origin
+                    }
+                }
+            }
+            return fetchFromOrigin(origin, path, sink, current);
+        }
+
+        /**
+         * On a response to another replica, passes on the entry's remaining lifetime as
+         * Cache-Control, so the copy there expires with this one, and its hit count, which
+         * the peer uses to decide whether to keep a copy.
+         */
+        private static void peerHeaders(HttpExchange exchange, boolean storable, long expiresAt, long staleUntil,
+                long hits) {
+            if (!exchange.getRequestHeaders().containsKey(PEER_HEADER)) {
+                return;
+            }
+            Headers headers = exchange.getResponseHeaders();
+            if (!storable) {
+                headers.set("Cache-Control", "no-store");
+            } else if (expiresAt != Long.MAX_VALUE) {
+                long now = System.currentTimeMillis();
+                long maxAge = Math.max(0, expiresAt - now) / 1000;
+                long stale = Math.max(0, staleUntil - Math.max(expiresAt, now)) / 1000;
+                headers.set("Cache-Control", "max-age=" + maxAge + ", stale-while-revalidate=" + stale);
+            }
+            headers.set(PEER_HITS_HEADER, Long.toString(hits));
+        }
+
+        /**
+         * Fetch content from the origin server over a pooled keep-alive connection.
+         * The body is read from the socket straight into direct buffers: one buffer of the
+         * exact size when the origin sends Content-Length, otherwise a list of fixed-size
+         * chunks, so the body is never regrown or copied into a final array. Slices of those
+         * buffers are forwarded to the sink as soon as they are read, so the client's time to
+         * first byte does not wait for the whole download.
+         */
+        private CachedContent fetchFromOrigin(OriginClient source, String path, ClientSink sink, CachedContent stale)
+                throws IOException {
+            Map<String, String> headers = stale == null ? Collections.emptyMap() : stale.conditionalHeaders();
+            boolean fromOrigin = source == origin;
+            if (!fromOrigin) {
+                headers = new HashMap<>(headers);
+                headers.put(PEER_HEADER, self != null ? self : "prewarm");
+            }
+            long start = System.nanoTime();
+            try (OriginClient.Response response = source.get(path, headers)) {
+                Freshness freshness = freshness(response, System.currentTimeMillis());
+                if (sink.exchange != null) {
+                    // A peer waiting on this fetch learns the lifetime before the body starts.
+                    peerHeaders(sink.exchange, freshness.storable, freshness.expiresAt, freshness.staleUntil, 0);
+                }
+                if (stale != null && response.status == 304) {
+                    stale.refreshed(freshness);
+                    return stale;
+                }
+                if (response.status != 200) {
+                    throw new OriginStatusException(response.status);
+                }
+                String contentType = response.header("Content-Type");
+                ByteBuffer[] body = readBody(response, sink, contentType);
+                sink.end();
+                CachedContent fetched = new CachedContent(path, contentType, body, response.header("ETag"),
+                        parseHttpDate(response.header("Last-Modified")));
+                fetched.refreshed(freshness);
+                if (!fromOrigin) {
+                    fetched.peerHits = parseLong(response.header(PEER_HITS_HEADER));
+                }
+                return fetched;
+            } catch (IOException e) {
+                if (!(e instanceof OriginStatusException) || ((OriginStatusException) e).status != 404) {
+                    (fromOrigin ? metrics.originErrors : metrics.peerErrors).increment();
+                }
+                throw e;
+            } finally {
+                if (fromOrigin) {
+                    metrics.originFetch.recordNanos(System.nanoTime() - start);
                 } else {
-                    // Cache miss: fetch content from origin server.
-                    System.out.println("Cache miss for " + path + ". Fetching from origin...");
-                    content = fetchFromOrigin(path);
-                    // Store in cache
-                    cache.put(path, new CachedContent(path, content));
+                    metrics.peerFetches.increment();
                 }
             }
-            // Respond with content.
-            exchange.sendResponseHeaders(200, content.length);
-            OutputStream os = exchange.getResponseBody();
-            os.write(content);
-            os.close();
+        }
+
+        // A non-negative count from a header; 0 when absent or malformed.
+        private static long parseLong(String value) {
+            try {
+                return value == null ? 0 : Math.max(0, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        private static Freshness freshness(OriginClient.Response response, long now) {
+            long age = -1;
+            try {
+                String value = response.header("Age");
+                age = value == null ? -1 : Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // ignore a malformed Age
+            }
+            // Pragma: no-cache counts only for an origin that sends no Cache-Control (RFC 9111
+            // section 5.4).
+            String cacheControl = response.header("Cache-Control");
+            String pragma = response.header("Pragma");
+            if (cacheControl == null && pragma != null && pragma.toLowerCase().contains("no-cache")) {
+                cacheControl = "no-cache";
+            }
+            String expiresHeader = response.header("Expires");
+            long expires = parseHttpDate(expiresHeader);
+            if (expiresHeader != null && expires == -1) {
+                expires = Freshness.INVALID_EXPIRES;
+            }
+            return Freshness.fromHeaders(cacheControl, expires, parseHttpDate(response.header("Date")), age, now,
+                    CDNConfig.DEFAULT_TTL_SECONDS * 1000, CDNConfig.STALE_WHILE_REVALIDATE_SECONDS * 1000);
         }
 
         /**
-         * Fetch content from the origin server. Assumes HTTP protocol and port 80.
+         * Starts revalidating a path in the background, unless that is already under way.
+         * Requests keep being answered from the cached copy meanwhile. If the refresh fails,
+         * the copy is served until its stale period runs out.
          */
-        private byte[] fetchFromOrigin(String path) throws IOException {
-            URL url = new URL("http://" + CDNConfig.ORIGIN_SERVER + path);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try (InputStream is = conn.getInputStream()) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = is.read(buffer)) != -1) {
-                    baos.write(buffer, 0, bytesRead);
+        private void refreshAsync(String path) {
+            if (inFlight.containsKey(path) || !refreshing.add(path)) {
+                return;
+            }
+            metrics.refreshes.increment();
+            refresher.execute(() -> {
+                try {
+                    loadCoalesced(path, ClientSink.discarding(), true, false);
+                } catch (IOException | RuntimeException e) {
+                    metrics.refreshFailures.increment(); // counted, not logged: an outage fails them all
+                } finally {
+                    refreshing.remove(path);
                 }
+            });
+        }
+
+        /**
+         * Once a fresh entry has been hit often enough since it was last fetched, schedules a
+         * refresh shortly before it expires, so popular content never turns stale and no
+         * request ever waits for the origin on its account.
+         */
+        private void scheduleRefreshAhead(String path, CachedContent content, long now) {
+            Freshness freshness = content.freshness;
+            if (content.hitNo.sum() - content.hitsAtRefresh < CDNConfig.REFRESH_AHEAD_HITS
+                    || freshness.expiresAt == Long.MAX_VALUE
+                    || !content.refreshScheduled.compareAndSet(false, true)) {
+                return;
             }
-            return baos.toByteArray();
+            long delay = Math.max(0, freshness.refreshAheadAt(CDNConfig.REFRESH_AHEAD_PERCENT) - now);
+            refresher.schedule(() -> {
+                // Skip if the entry was replaced or revalidated in the meantime.
+                if (cache.peek(path) == content && content.freshness == freshness) {
+                    refreshAsync(path);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private static ByteBuffer[] readBody(OriginClient.Response response, ClientSink sink, String contentType)
+                throws IOException {
+            long contentLength = response.contentLength;
+            if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+                sink.start(contentLength, contentType);
+                ByteBuffer body = ByteBuffer.allocateDirect((int) contentLength);
+                int forwarded = 0;
+                while (body.hasRemaining()) {
+                    if (response.read(body) == -1) {
+                        throw new EOFException("Origin closed after " + body.position() + " of " + contentLength + " bytes");
+                    }
+                    if (body.position() - forwarded >= ClientSink.FORWARD_BYTES || !body.hasRemaining()) {
+                        sink.write(slice(body, forwarded, body.position()));
+                        forwarded = body.position();
+                    }
+                }
+                body.flip();
+                return new ByteBuffer[] { body };
+            }
+            sink.start(-1, contentType);
+            List<ByteBuffer> chunks = new ArrayList<>();
+            while (true) {
+                ByteBuffer chunk = ByteBuffer.allocateDirect(CachedContent.CHUNK_SIZE);
+                int forwarded = 0;
+                int n = 0;
+                while (chunk.hasRemaining() && (n = response.read(chunk)) != -1) {
+                    if (chunk.position() - forwarded >= ClientSink.FORWARD_BYTES) {
+                        sink.write(slice(chunk, forwarded, chunk.position()));
+                        forwarded = chunk.position();
+                    }
+                }
+                if (chunk.position() > forwarded) {
+                    sink.write(slice(chunk, forwarded, chunk.position()));
+                }
+                if (chunk.position() > 0) {
+                    chunk.flip();
+                    chunks.add(chunk);
+                }
+                if (n == -1) {
+                    break;
+                }
+            }
+            return chunks.toArray(new ByteBuffer[0]);
+        }
+
+        static String formatHttpDate(long millis) {
+            return Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC).format(HTTP_DATE);
+        }
+
+        // Returns epoch millis, or -1 if the value is absent or not an HTTP date.
+        static long parseHttpDate(String value) {
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return ZonedDateTime.parse(value.trim(), HTTP_DATE).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return -1;
+            }
+        }
+
+        // A view of buffer[from, to) that shares its memory.
+        private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+            ByteBuffer view = buffer.duplicate();
+            view.limit(to).position(from);
+            return view;
+        }
+    }
+
+    /**
+     * Forwards origin bytes to the client that triggered a fetch while the cache entry is
+     * being filled. If the client goes away, the fill carries on for the sake of the cache
+     * and the client's failure is only reported once the entry is stored.
+     */
+    static class ClientSink {
+        // Forward to the client once this many new bytes have been read from the origin.
+        static final int FORWARD_BYTES = 16 * 1024;
+
+        private final HttpExchange exchange;
+        // Counts the bytes sent to the client; null when nothing is sent.
+        private final LongAdder bytesServed;
+        private WritableByteChannel streamOut;
+        private boolean started;
+        private IOException failure;
+
+        ClientSink(HttpExchange exchange, LongAdder bytesServed) {
+            this.exchange = exchange;
+            this.bytesServed = bytesServed;
+        }
+
+        // A sink for fetches no client is waiting on, such as background refreshes.
+        static ClientSink discarding() {
+            return new ClientSink(null, null);
+        }
+
+        /**
+         * Sends the response headers. A negative length means the origin did not announce
+         * one, in which case the response is chunked.
+         */
+        void start(long length, String contentType) {
+            if (exchange == null) {
+                return;
+            }
+            started = true;
+            try {
+                if (contentType != null) {
+                    exchange.getResponseHeaders().set("Content-Type", contentType);
+                }
+                exchange.sendResponseHeaders(200, length == 0 ? -1 : Math.max(length, 0));
+                if (!(exchange instanceof VirtualThreadHttpServer.ChannelExchange)) {
+                    streamOut = Channels.newChannel(exchange.getResponseBody());
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        void write(ByteBuffer slice) {
+            if (exchange == null || failure != null) {
+                return;
+            }
+            bytesServed.add(slice.remaining());
+            try {
+                if (streamOut == null) {
+                    ((VirtualThreadHttpServer.ChannelExchange) exchange).write(new ByteBuffer[] { slice });
+                } else {
+                    while (slice.hasRemaining()) {
+                        streamOut.write(slice);
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        boolean started() {
+            return started;
+        }
+
+        // Completes the response body; a failure is kept for rethrowFailure().
+        void end() {
+            if (started && failure == null) {
+                try {
+                    exchange.getResponseBody().close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+
+        // Reports why the client could not be served, if it could not.
+        void rethrowFailure() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    // The origin answered with something other than 200 OK.
+    static class OriginStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        OriginStatusException(int status) {
+            super("Origin returned status " + status);
+            this.status = status;
         }
     }
 
     // Represents a cached content entry.
     static class CachedContent {
+        // Chunk size used when the origin does not announce the body length.
+        static final int CHUNK_SIZE = 64 * 1024;
+
         String domainName; // URL path (e.g., /index.html)
-        byte[] content;
-        int hitNo;
+        final String contentType; // as sent by the origin, may be null
+        // Validators for conditional and range requests: the origin's when it sent them,
+        // otherwise a strong ETag derived from the body and the time of the fetch.
+        final String etag;
+        final long lastModified; // epoch millis
+        // Identity body held off-heap in read-only buffers; shared by all concurrent
+        // responses. Null when only the gzip variant is kept.
+        private final ByteBuffer[] chunks;
+        // Gzip-encoded variant of the body, or null.
+        private final ByteBuffer gzip;
+        final long length; // identity length
+        // Striped counter so concurrent hits on a hot entry do not contend on one field.
+        final LongAdder hitNo = new LongAdder();
+        // Validators as the origin sent them, for conditional revalidation; null / -1 if not.
+        private final String originETag;
+        private final long originLastModified;
+        // Replaced whenever the origin confirms or replaces the body.
+        volatile Freshness freshness = new Freshness(System.currentTimeMillis(), Long.MAX_VALUE, Long.MAX_VALUE, true);
+        // hitNo at the last refresh, and whether a refresh-ahead is already scheduled.
+        volatile long hitsAtRefresh;
+        final AtomicBoolean refreshScheduled = new AtomicBoolean();
+        // The owner's hit count when this copy was fetched from a peer replica; -1 if not.
+        long peerHits = -1;
 
-        public CachedContent(String domainName, byte[] content) {
+        /**
+         * The chunks must be positioned for reading (flipped). Either validator may be null
+         * or -1 respectively, in which case one is generated.
+         */
+        public CachedContent(String domainName, String contentType, ByteBuffer[] chunks, String etag, long lastModified) {
             this.domainName = domainName;
-            this.content = content;
-            this.hitNo = 1;
+            this.contentType = contentType;
+            this.chunks = new ByteBuffer[chunks.length];
+            long total = 0;
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < chunks.length; i++) {
+                this.chunks[i] = chunks[i].asReadOnlyBuffer();
+                total += this.chunks[i].remaining();
+                if (etag == null) {
+                    crc.update(this.chunks[i].duplicate());
+                }
+            }
+            this.gzip = null;
+            this.length = total;
+            // Derived from the content only, so every replica hands out the same ETag.
+            this.etag = etag != null ? etag : "\"" + Long.toHexString(total) + "-" + Long.toHexString(crc.getValue()) + "\"";
+            this.lastModified = lastModified >= 0 ? lastModified : System.currentTimeMillis();
+            this.originETag = etag;
+            this.originLastModified = lastModified;
+            this.hitNo.increment();
+        }
+
+        private CachedContent(CachedContent identity, ByteBuffer[] chunks, ByteBuffer gzip) {
+            this.domainName = identity.domainName;
+            this.contentType = identity.contentType;
+            this.chunks = chunks;
+            this.gzip = gzip;
+            this.length = identity.length;
+            this.etag = identity.etag;
+            this.lastModified = identity.lastModified;
+            this.originETag = identity.originETag;
+            this.originLastModified = identity.originLastModified;
+            this.freshness = identity.freshness;
+            this.hitNo.increment();
+        }
+
+        /**
+         * Returns the entry to cache for a compression mode: "off" keeps the identity body,
+         * "gzip" keeps only a gzip variant (more entries fit; identity clients get it
+         * inflated on the fly) and "both" keeps the two side by side. Bodies that are not
+         * compressible, or do not shrink enough, stay as they are.
+         */
+        CachedContent compressed(String mode) {
+            if ("off".equals(mode) || gzip != null || chunks == null || !GzipCodec.isCompressible(contentType)) {
+                return this;
+            }
+            ByteBuffer encoded = GzipCodec.gzip(chunks, length, CDNConfig.COMPRESSION_LEVEL);
+            if (encoded == null) {
+                return this;
+            }
+            return new CachedContent(this, "both".equals(mode) ? chunks : null, encoded);
+        }
+
+        boolean hasIdentity() {
+            return chunks != null;
+        }
+
+        /**
+         * Returns independent views of the identity body, positioned at its start, for one
+         * response. Only valid when {@link #hasIdentity()}.
+         */
+        ByteBuffer[] body() {
+            ByteBuffer[] views = new ByteBuffer[chunks.length];
+            for (int i = 0; i < chunks.length; i++) {
+                views[i] = chunks[i].duplicate();
+            }
+            return views;
+        }
+
+        /**
+         * Returns views of bytes [from, to) of the identity body, sharing its memory.
+         */
+        ByteBuffer[] body(long from, long to) {
+            List<ByteBuffer> views = new ArrayList<>();
+            long offset = 0;
+            for (ByteBuffer chunk : chunks) {
+                long chunkEnd = offset + chunk.remaining();
+                if (chunkEnd > from && offset < to) {
+                    ByteBuffer view = chunk.duplicate();
+                    int start = chunk.position();
+                    view.limit(start + (int) (Math.min(to, chunkEnd) - offset));
+                    view.position(start + (int) (Math.max(from, offset) - offset));
+                    views.add(view);
+                }
+                offset = chunkEnd;
+            }
+            return views.toArray(new ByteBuffer[0]);
+        }
+
+        // The gzip variant is a different representation and needs its own ETag.
+        String gzipETag() {
+            return etag.endsWith("\"") ? etag.substring(0, etag.length() - 1) + "-gzip\"" : etag + "-gzip";
+        }
+
+        // A view of the gzip variant for one response, or null if there is none.
+        ByteBuffer gzipBody() {
+            return gzip == null ? null : gzip.duplicate();
+        }
+
+        // Starts a new lifetime after the origin sent or confirmed this body.
+        void refreshed(Freshness freshness) {
+            this.freshness = freshness;
+            this.hitsAtRefresh = hitNo.sum();
+            this.refreshScheduled.set(false);
+        }
+
+        // Request headers that let the origin answer 304 if the body has not changed.
+        Map<String, String> conditionalHeaders() {
+            Map<String, String> headers = new HashMap<>();
+            if (originETag != null) {
+                headers.put("If-None-Match", originETag);
+            }
+            if (originLastModified >= 0) {
+                headers.put("If-Modified-Since", CDNHandler.formatHttpDate(originLastModified));
+            }
+            return headers;
+        }
+
+        // Bytes charged against the cache budget.
+        long weight() {
+            return (chunks != null ? length : 0) + (gzip != null ? gzip.remaining() : 0);
         }
     }
 
     // Simple configuration holder.
     public static class CDNConfig {
         public static String ORIGIN_SERVER = "origin.example.com"; // default; to be set via command-line
+        // Serving engine: "jdk" (HttpServer with a worker pool) or "vthread" (virtual thread per connection).
+        public static String ENGINE = "jdk";
+        // Worker threads for the jdk engine.
+        public static int WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 8;
+        // Maximum open connections for the vthread engine.
+        public static int MAX_CONNECTIONS = 10000;
+        // Idle keep-alive connections are closed after this long (vthread engine).
+        public static int IDLE_TIMEOUT_MILLIS = 30000;
+        public static int BACKLOG = 1024;
+        // Memory cache budget in bytes (sum of cached body sizes).
+        public static long CACHE_BYTES = 64L * 1024 * 1024;
+        // Disk tier directory (disabled when null) and its quota in bytes.
+        public static String DISK_CACHE_DIR = null;
+        public static long DISK_QUOTA_BYTES = 1024L * 1024 * 1024;
+        // Origin connection pool: concurrent requests (= max open connections) and timeouts.
+        public static int ORIGIN_MAX_CONNECTIONS = 64;
+        public static int ORIGIN_CONNECT_TIMEOUT_MILLIS = 2000;
+        public static int ORIGIN_READ_TIMEOUT_MILLIS = 10000;
+        // How long a miss may wait for a free origin connection before it is answered with 503.
+        public static long ORIGIN_ACQUIRE_TIMEOUT_MILLIS = 1000;
+        public static long ORIGIN_IDLE_TIMEOUT_MILLIS = 30000;
+        // Compressible bodies: "gzip" (store only a gzip variant), "both" or "off".
+        public static String COMPRESSION = "gzip";
+        public static int COMPRESSION_LEVEL = 6;
+        // Memory cache eviction: "tinylfu" (scan-resistant admission) or "lru".
+        public static String EVICTION_POLICY = "tinylfu";
+        // Freshness for responses without Cache-Control max-age/s-maxage or Expires.
+        public static long DEFAULT_TTL_SECONDS = 300;
+        // Grace period in which an expired entry is served while it is revalidated, unless
+        // the origin sets its own stale-while-revalidate or forbids serving stale.
+        public static long STALE_WHILE_REVALIDATE_SECONDS = 60;
+        // Entries with this many hits since their last refresh are refreshed ahead of expiry,
+        // this percentage of their lifetime before they would expire.
+        public static int REFRESH_AHEAD_HITS = 10;
+        public static int REFRESH_AHEAD_PERCENT = 20;
+        public static int REFRESH_THREADS = 4;
+        // Warm start: hot-set snapshot file (disabled when null), how many keys it keeps and
+        // how often it is written.
+        public static String SNAPSHOT_FILE = null;
+        public static int SNAPSHOT_KEYS = 10000;
+        public static long SNAPSHOT_INTERVAL_SECONDS = 60;
+        // How many of the snapshot's hottest keys to load on startup, how many at a time, an
+        // optional peer replica (host:port) to load them from, and when to stop waiting.
+        public static int PREWARM_COUNT = 1000;
+        public static int PREWARM_CONCURRENCY = 8;
+        public static String PREWARM_PEER = null;
+        public static long PREWARM_TIMEOUT_SECONDS = 60;
+        // Port of the /metrics, /health and /ready endpoint; 0 disables it.
+        public static int METRICS_PORT = 0;
+        // Cooperative caching: the replicas (host:port) that share their caches, null when
+        // alone; this replica's address as the others know it (localhost:<port> if null);
+        // and how many hits the owner must report before another replica keeps a copy.
+        public static List<String> PEERS = null;
+        public static String PEER_SELF = null;
+        public static long PEER_REPLICATE_HITS = 20;
+        // RTT probing: the DNS server's probe port (host:port, null when off), this
+        // replica's address in the DNS server's replica set (the collector takes reports
+        // only from that address), and a delay added to every sample for tests with several
+        // replicas on one machine.
+        public static String PROBE_COLLECTOR = null;
+        public static String PROBE_REPLICA_ADDRESS = null;
+        public static int PROBE_INJECTED_DELAY_MILLIS = 0;
     }
 
     public static void main(String[] args) {
-        // Expected arguments: -p <port> -o <origin>
+        // Expected arguments: -p <port> -o <origin> [-e <jdk|vthread>] [-t <workers>] [-k <maxConnections>] [-c <cacheMB>] [-d <diskDir>] [-q <diskQuotaMB>] [-oc <originConnections>] [-ot <connectTimeoutMs>] [-or <readTimeoutMs>] [-z <gzip|both|off>] [-ev <tinylfu|lru>] [-ttl <seconds>] [-swr <seconds>] [-s <snapshotFile>] [-w <prewarmCount>] [-wp <peerReplica>] [-m <metricsPort>] [-peers <host:port,...>] [-self <host:port>] [-ph <replicateHits>] [-probe <dnsHost:probePort> -pa <replicaAddress>] [-pd <probeDelayMs>]
         if (args.length < 4) {
-            System.err.println("Usage: ./httpserver -p <port> -o <origin>");
+            System.err.println("Requires Java 21 or later (virtual threads).");
+            System.err.println("Usage: ./httpserver -p <port> -o <origin> [-e <jdk|vthread>] [-t <workers>] [-k <maxConnections>] [-c <cacheMB>] [-d <diskDir>] [-q <diskQuotaMB>] [-oc <originConnections>] [-ot <connectTimeoutMs>] [-or <readTimeoutMs>] [-z <gzip|both|off>] [-ev <tinylfu|lru>] [-ttl <seconds>] [-swr <seconds>] [-s <snapshotFile>] [-w <prewarmCount>] [-wp <peerReplica>] [-m <metricsPort>] [-peers <host:port,...>] [-self <host:port>] [-ph <replicateHits>] [-probe <dnsHost:probePort> -pa <replicaAddress>] [-pd <probeDelayMs>]");
             System.exit(1);
         }
         int port = 0;
@@ -124,9 +1283,84 @@ public class HTTPServerCDN {
             } else if ("-o".equals(args[i]) && i + 1 < args.length) {
                 origin = args[i + 1];
                 i++;
+            } else if ("-e".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.ENGINE = args[i + 1];
+                i++;
+            } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.WORKER_THREADS = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-k".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.MAX_CONNECTIONS = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-c".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.CACHE_BYTES = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                i++;
+            } else if ("-d".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.DISK_CACHE_DIR = args[i + 1];
+                i++;
+            } else if ("-q".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.DISK_QUOTA_BYTES = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                i++;
+            } else if ("-oc".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.ORIGIN_MAX_CONNECTIONS = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-ot".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.ORIGIN_CONNECT_TIMEOUT_MILLIS = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-or".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.ORIGIN_READ_TIMEOUT_MILLIS = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-z".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.COMPRESSION = args[i + 1];
+                i++;
+            } else if ("-ev".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.EVICTION_POLICY = args[i + 1];
+                i++;
+            } else if ("-ttl".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.DEFAULT_TTL_SECONDS = Long.parseLong(args[i + 1]);
+                i++;
+            } else if ("-swr".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.STALE_WHILE_REVALIDATE_SECONDS = Long.parseLong(args[i + 1]);
+                i++;
+            } else if ("-s".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.SNAPSHOT_FILE = args[i + 1];
+                i++;
+            } else if ("-w".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.PREWARM_COUNT = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-wp".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.PREWARM_PEER = args[i + 1];
+                i++;
+            } else if ("-m".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.METRICS_PORT = Integer.parseInt(args[i + 1]);
+                i++;
+            } else if ("-peers".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.PEERS = List.of(args[i + 1].split(","));
+                i++;
+            } else if ("-self".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.PEER_SELF = args[i + 1];
+                i++;
+            } else if ("-ph".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.PEER_REPLICATE_HITS = Long.parseLong(args[i + 1]);
+                i++;
+            } else if ("-probe".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.PROBE_COLLECTOR = args[i + 1];
+                i++;
+            } else if ("-pa".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.PROBE_REPLICA_ADDRESS = args[i + 1];
+                i++;
+            } else if ("-pd".equals(args[i]) && i + 1 < args.length) {
+                CDNConfig.PROBE_INJECTED_DELAY_MILLIS = Integer.parseInt(args[i + 1]);
+                i++;
             }
         }
-        if (port == 0 || origin == null) {
+        if (port == 0 || origin == null
+                || !("jdk".equals(CDNConfig.ENGINE) || "vthread".equals(CDNConfig.ENGINE))
+                || !("gzip".equals(CDNConfig.COMPRESSION) || "both".equals(CDNConfig.COMPRESSION)
+                        || "off".equals(CDNConfig.COMPRESSION))
+                || !("tinylfu".equals(CDNConfig.EVICTION_POLICY) || "lru".equals(CDNConfig.EVICTION_POLICY))
+                || (CDNConfig.PROBE_COLLECTOR != null
+                        && (CDNConfig.PROBE_REPLICA_ADDRESS == null || CDNConfig.PROBE_COLLECTOR.lastIndexOf(':') < 0))) {
             System.err.println("Invalid arguments.");
             System.exit(1);
         }
@@ -0,0 +1,118 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets.
+ *
+ * Every power of two is split into 32 sub-buckets, so a recorded value is known to within
+ * about 3% anywhere between 1 microsecond and about 19 hours, with a fixed set of ~1200
+ * counters. Recording is a single LongAdder increment, so request threads hitting the same
+ * bucket do not contend. Reading takes a snapshot that is consistent per bucket, which is
+ * all a scrape needs.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_SHIFT = 36;
+    private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_COUNT;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sumMicros = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public void recordMicros(long micros) {
+        counts[index(micros)].increment();
+        sumMicros.add(Math.max(0, micros));
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts[i].sum();
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sumMicros.sum());
+    }
+
+    static int index(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) Math.max(0, micros);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        return (shift + 1) * SUB_COUNT + (int) ((micros >>> shift) - SUB_COUNT);
+    }
+
+    // Smallest value that falls into the bucket.
+    static long lowerBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        return (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+    }
+
+    // Largest value that falls into the bucket.
+    static long upperBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        return lowerBound(index) + (1L << (index / SUB_COUNT - 1)) - 1;
+    }
+
+    // A point-in-time copy of the bucket counts.
+    public static final class Snapshot {
+        private final long[] counts;
+        public final long count;
+        public final long sumMicros;
+
+        private Snapshot(long[] counts, long count, long sumMicros) {
+            this.counts = counts;
+            this.count = count;
+            this.sumMicros = sumMicros;
+        }
+
+        /**
+         * Number of recorded values known to be at most the given value, i.e. those in
+         * buckets that lie entirely at or below it.
+         */
+        public long countAtOrBelow(long micros) {
+            long n = 0;
+            for (int i = 0; i < counts.length && upperBound(i) <= micros; i++) {
+                n += counts[i];
+            }
+            return n;
+        }
+
+        /**
+         * The value below which the given fraction of recorded values fall, reported as the
+         * upper end of its bucket; 0 if nothing was recorded.
+         */
+        public long valueAtQuantile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+    }
+}
@@ -0,0 +1,548 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP/1.1 client for one upstream server (the origin) with a bounded pool of
+ * persistent connections.
+ *
+ * At most maxConnections requests are in flight at once; further callers wait up to the
+ * acquire timeout for a slot and then fail fast, which protects the origin during bursts.
+ * Finished connections go back to an idle pool and are reused, so a miss usually skips
+ * the TCP handshake. Bodies are read from the socket straight into caller-supplied
+ * (direct) buffers. A watchdog closes connections whose reads stall past the read timeout.
+ */
+public class OriginClient {
+
+    private static final int HEAD_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HEADER_LINES = 100;
+    private static final long WATCHDOG_PERIOD_MILLIS = 100;
+
+    // A single daemon thread enforces read timeouts for all clients.
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "origin-read-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String host;
+    private final int port;
+    private final String hostHeader;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final long acquireTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final int maxConnections;
+
+    private final Semaphore inFlight;
+    // Most recently used first, so the warmest connections are reused.
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final Set<Connection> busy = ConcurrentHashMap.newKeySet();
+
+    // Pool metrics.
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsReused = new LongAdder();
+    private final LongAdder acquireWaits = new LongAdder();
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final LongAdder readTimeouts = new LongAdder();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @param server host or host:port of the upstream server (port 80 by default)
+     */
+    public OriginClient(String server, int maxConnections, int connectTimeoutMillis,
+                        int readTimeoutMillis, long acquireTimeoutMillis, long idleTimeoutMillis) {
+        int colon = server.lastIndexOf(':');
+        this.host = colon > 0 ? server.substring(0, colon) : server;
+        this.port = colon > 0 ? Integer.parseInt(server.substring(colon + 1)) : 80;
+        this.hostHeader = server;
+        this.maxConnections = maxConnections;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.inFlight = new Semaphore(maxConnections);
+        WATCHDOG.scheduleWithFixedDelay(this::closeStalledReads,
+                WATCHDOG_PERIOD_MILLIS, WATCHDOG_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a GET and returns once the response head has arrived. The caller must read
+     * the body (or not) and close the response, which releases the in-flight slot and
+     * returns the connection to the pool when it can be reused.
+     */
+    public Response get(String path, Map<String, String> headers) throws IOException {
+        if (!isRequestTarget(path)) {
+            throw new IOException("Not a valid request target: " + path);
+        }
+        acquireSlot();
+        requests.increment();
+        try {
+            Connection connection = idle.pollFirst();
+            while (connection != null && connection.idleSince < System.currentTimeMillis() - idleTimeoutMillis) {
+                connection.close();
+                connection = idle.pollFirst();
+            }
+            if (connection != null) {
+                connectionsReused.increment();
+                try {
+                    return send(connection, path, headers);
+                } catch (IOException e) {
+                    // EOF or reset before any response byte: the origin closed the idle
+                    // connection, and GET is safe to retry once. A timeout or a broken
+                    // response is the origin's answer and is not retried.
+                    if (connection.responseStarted || e instanceof SocketTimeoutException) {
+                        throw e;
+                    }
+                }
+            }
+            return send(open(), path, headers);
+        } catch (IOException | RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    // An origin-form target: starts with '/' and holds only visible ASCII, so nothing in it
+    // can end the request line early.
+    private static boolean isRequestTarget(String path) {
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            return false;
+        }
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c <= ' ' || c >= 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void acquireSlot() throws IOException {
+        if (inFlight.tryAcquire()) {
+            return;
+        }
+        acquireWaits.increment();
+        waiting.incrementAndGet();
+        try {
+            if (!inFlight.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                acquireTimeouts.increment();
+                throw new SaturatedException(hostHeader, maxConnections);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for an origin connection", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private Connection open() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        connectionsOpened.increment();
+        return new Connection(channel, readTimeoutMillis);
+    }
+
+    private Response send(Connection connection, String path, Map<String, String> headers) throws IOException {
+        busy.add(connection);
+        try {
+            StringBuilder request = new StringBuilder(128);
+            request.append("GET ").append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(hostHeader).append("\r\n");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            request.append("\r\n");
+            ByteBuffer out = ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+            while (out.hasRemaining()) {
+                connection.channel.write(out);
+            }
+            return connection.readResponseHead(this);
+        } catch (IOException | RuntimeException e) {
+            // Nothing else owns the connection now: a failed exchange must not leak it.
+            busy.remove(connection);
+            connection.close();
+            throw e;
+        }
+    }
+
+    // Called by Response.close().
+    private void release(Connection connection, boolean reusable) {
+        busy.remove(connection);
+        if (reusable) {
+            connection.idleSince = System.currentTimeMillis();
+            idle.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+        inFlight.release();
+        // Keep the idle pool within bounds if the limit was lowered or connections piled up.
+        while (idle.size() > maxConnections) {
+            Connection stale = idle.pollLast();
+            if (stale == null) {
+                break;
+            }
+            stale.close();
+        }
+    }
+
+    private void closeStalledReads() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : busy) {
+            if (connection.readDeadline < now) {
+                readTimeouts.increment();
+                connection.timedOut = true;
+                connection.close();
+            }
+        }
+    }
+
+    public String server() {
+        return hostHeader;
+    }
+
+    public int maxConnections() {
+        return maxConnections;
+    }
+
+    public int inFlight() {
+        return maxConnections - inFlight.availablePermits();
+    }
+
+    public int idleConnections() {
+        return idle.size();
+    }
+
+    public int waiting() {
+        return waiting.get();
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    public long connectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public long connectionsReused() {
+        return connectionsReused.sum();
+    }
+
+    public long acquireWaits() {
+        return acquireWaits.sum();
+    }
+
+    public long acquireTimeouts() {
+        return acquireTimeouts.sum();
+    }
+
+    public long readTimeouts() {
+        return readTimeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "OriginClient[" + hostHeader + " inFlight=" + inFlight() + "/" + maxConnections
+                + " idle=" + idleConnections() + " waiting=" + waiting() + " requests=" + requests()
+                + " opened=" + connectionsOpened() + " reused=" + connectionsReused()
+                + " acquireWaits=" + acquireWaits() + " acquireTimeouts=" + acquireTimeouts()
+                + " readTimeouts=" + readTimeouts() + "]";
+    }
+
+    // A non-negative number in a response head. Garbage from the origin fails the exchange
+    // like any other I/O error, so the connection is discarded and the client gets a 502.
+    private static long parseNumber(String value, int radix, String what) throws IOException {
+        try {
+            long n = Long.parseLong(value, radix);
+            if (n >= 0 && !value.startsWith("+")) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IOException("Malformed " + what + " from origin: " + value);
+    }
+
+    /**
+     * A response whose head has been parsed. Header names are stored lower-cased.
+     */
+    public static class Response implements Closeable {
+        public final int status;
+        private final Map<String, String> headers;
+        // -1 when the body length is not known up front (chunked or close-delimited).
+        public final long contentLength;
+        private final OriginClient client;
+        private final Connection connection;
+        private final boolean chunked;
+        private final boolean closeDelimited;
+        private final boolean keepAlive;
+        private long remaining;       // bytes left in the body (fixed length) or current chunk
+        private boolean finished;
+        private boolean closed;
+
+        Response(OriginClient client, Connection connection, int status, Map<String, String> headers,
+                 boolean keepAlive) throws IOException {
+            this.client = client;
+            this.connection = connection;
+            this.status = status;
+            this.headers = headers;
+            boolean noBody = (status >= 100 && status < 200) || status == 204 || status == 304;
+            String transferEncoding = headers.get("transfer-encoding");
+            String length = headers.get("content-length");
+            this.chunked = !noBody && transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+            if (noBody) {
+                this.contentLength = 0;
+            } else if (!chunked && length != null) {
+                this.contentLength = parseNumber(length.trim(), 10, "Content-Length");
+            } else {
+                this.contentLength = -1;
+            }
+            this.closeDelimited = !noBody && !chunked && length == null;
+            this.keepAlive = keepAlive && !closeDelimited;
+            this.remaining = contentLength > 0 ? contentLength : 0;
+            this.finished = contentLength == 0;
+        }
+
+        public String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        /**
+         * Reads body bytes into dst. Returns the number of bytes read, or -1 at the end of
+         * the body.
+         */
+        public int read(ByteBuffer dst) throws IOException {
+            if (finished) {
+                return -1;
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            if (closeDelimited) {
+                int n = connection.readBody(dst, Long.MAX_VALUE);
+                if (n == -1) {
+                    finished = true;
+                }
+                return n;
+            }
+            if (chunked && remaining == 0) {
+                remaining = connection.nextChunkSize();
+                if (remaining == 0) {
+                    connection.skipTrailers();
+                    finished = true;
+                    return -1;
+                }
+            }
+            int n = connection.readBody(dst, remaining);
+            if (n == -1) {
+                throw new EOFException("Origin closed the connection mid-body");
+            }
+            remaining -= n;
+            if (remaining == 0) {
+                if (chunked) {
+                    connection.readLine(); // CRLF after the chunk data
+                } else {
+                    finished = true;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Releases the connection. It goes back to the pool only if the body was read to
+         * the end and the origin allows keep-alive; otherwise it is closed.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                client.release(connection, finished && keepAlive && !connection.timedOut);
+            }
+        }
+    }
+
+    /**
+     * One socket to the origin plus a small direct buffer for parsing response heads and
+     * chunk framing. Body bytes bypass that buffer whenever it is empty.
+     */
+    static class Connection {
+        final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(HEAD_BUFFER_SIZE);
+        private final int readTimeoutMillis;
+        // Set only while a read is blocked on the socket, so a slow consumer is not mistaken
+        // for a slow origin.
+        volatile long readDeadline = Long.MAX_VALUE;
+        volatile boolean timedOut;
+        // Whether any byte of the current response has arrived.
+        boolean responseStarted;
+        long idleSince;
+
+        Connection(SocketChannel channel, int readTimeoutMillis) {
+            this.channel = channel;
+            this.readTimeoutMillis = readTimeoutMillis;
+            buffer.flip(); // empty, ready for reading
+        }
+
+        private int timedRead(ByteBuffer dst) throws IOException {
+            readDeadline = System.currentTimeMillis() + readTimeoutMillis;
+            try {
+                int n = channel.read(dst);
+                if (n > 0) {
+                    responseStarted = true;
+                }
+                return n;
+            } catch (ClosedChannelException e) {
+                if (timedOut) {
+                    throw new SocketTimeoutException("Origin read timed out after " + readTimeoutMillis + " ms");
+                }
+                throw e;
+            } finally {
+                readDeadline = Long.MAX_VALUE;
+            }
+        }
+
+        Response readResponseHead(OriginClient client) throws IOException {
+            responseStarted = buffer.hasRemaining(); // leftovers would be part of it
+            String statusLine = readLine();
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line from origin: " + statusLine);
+            }
+            long status = parseNumber(parts[1], 10, "status");
+            if (parts[1].length() != 3) {
+                throw new IOException("Malformed status line from origin: " + statusLine);
+            }
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 0; ; i++) {
+                if (i > MAX_HEADER_LINES) {
+                    throw new IOException("Too many headers from origin");
+                }
+                String line = readLine();
+                if (line.isEmpty()) {
+                    break;
+                }
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.merge(line.substring(0, colon).trim().toLowerCase(),
+                            line.substring(colon + 1).trim(), (a, b) -> a + ", " + b);
+                }
+            }
+            String connectionHeader = headers.get("connection");
+            boolean keepAlive = "HTTP/1.1".equals(parts[0])
+                    ? connectionHeader == null || !connectionHeader.equalsIgnoreCase("close")
+                    : connectionHeader != null && connectionHeader.equalsIgnoreCase("keep-alive");
+            return new Response(client, this, (int) status, headers, keepAlive);
+        }
+
+        /**
+         * Reads up to max body bytes: buffered leftovers first, then straight from the socket
+         * into dst.
+         */
+        int readBody(ByteBuffer dst, long max) throws IOException {
+            if (buffer.hasRemaining()) {
+                int n = (int) Math.min(Math.min(buffer.remaining(), dst.remaining()), max);
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                buffer.position(buffer.position() + n);
+                return n;
+            }
+            int limit = dst.limit();
+            if (dst.remaining() > max) {
+                dst.limit(dst.position() + (int) max);
+            }
+            try {
+                return timedRead(dst);
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        long nextChunkSize() throws IOException {
+            String line = readLine();
+            int semicolon = line.indexOf(';');
+            String size = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+            return parseNumber(size, 16, "chunk size");
+        }
+
+        void skipTrailers() throws IOException {
+            while (!readLine().isEmpty()) {
+                // ignore trailer fields
+            }
+        }
+
+        String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                while (buffer.hasRemaining()) {
+                    char c = (char) (buffer.get() & 0xFF);
+                    if (c == '\n') {
+                        int len = sb.length();
+                        if (len > 0 && sb.charAt(len - 1) == '\r') {
+                            sb.setLength(len - 1);
+                        }
+                        return sb.toString();
+                    }
+                    if (sb.length() >= HEAD_BUFFER_SIZE) {
+                        throw new IOException("Header line too long from origin");
+                    }
+                    sb.append(c);
+                }
+                buffer.clear();
+                int n;
+                try {
+                    n = timedRead(buffer);
+                } finally {
+                    buffer.flip();
+                }
+                if (n == -1) {
+                    throw new EOFException("Origin closed the connection");
+                }
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // No connection slot became free within the acquire timeout.
+    static class SaturatedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SaturatedException(String server, int maxConnections) {
+            super("All " + maxConnections + " connections to " + server + " are busy");
+        }
+    }
+}
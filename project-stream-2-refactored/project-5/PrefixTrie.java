@@ -0,0 +1,307 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Longest-prefix match from IPv4 and IPv6 networks to ranked replica lists, for mapping
+ * clients by a geo or ASN table.
+ *
+ * Each family is a multibit trie in the style of Poptrie: a node consumes six address bits
+ * and has 64 slots, each either a child node or a leaf (a ranked-list index, or none).
+ * Instead of 64 pointers a node stores two 64-bit bitmaps: which slots have children, and
+ * at which slots a new run of equal leaves starts. A node's children are contiguous and so
+ * are its leaf runs, so a slot's child or leaf sits at a base index plus the popcount of
+ * the bitmap below the slot. Networks ending inside a node are expanded over the slots
+ * they cover, and shorter networks are pushed down into the leaves below longer ones, so
+ * a lookup never backtracks: it reads one node per six bits of the client prefix (at most
+ * 4 for IPv4, 10 for IPv6) and then one leaf, allocates nothing and needs no lock.
+ *
+ * Lookups are by ReplicaMapper.clientPrefix, which keeps only the first 24 (IPv4) or 56
+ * (IPv6) bits of an address, so table entries longer than that cannot be told apart. They
+ * are skipped and counted (skippedNetworks), and their clients get the ranking of the
+ * longest shorter network that covers them. The trie is immutable; load a new one to
+ * change the table.
+ */
+public class PrefixTrie {
+
+    private static final int STRIDE = 6;
+    // Key bits per family, rounded up to whole strides.
+    private static final int IPV4_WIDTH = 24;
+    private static final int IPV6_WIDTH = 60;
+
+    // Three longs per node: child bitmap, leaf-run bitmap, child base << 32 | leaf base.
+    private final long[] ipv4Nodes;
+    private final int[] ipv4Leaves;
+    private final long[] ipv6Nodes;
+    private final int[] ipv6Leaves;
+    private final List<List<String>> rankedLists;
+    private final int skippedNetworks;
+
+    private PrefixTrie(Family ipv4, Family ipv6, List<List<String>> rankedLists, int skippedNetworks) {
+        this.ipv4Nodes = ipv4.nodes();
+        this.ipv4Leaves = ipv4.leaves();
+        this.ipv6Nodes = ipv6.nodes();
+        this.ipv6Leaves = ipv6.leaves();
+        this.rankedLists = rankedLists;
+        this.skippedNetworks = skippedNetworks;
+    }
+
+    /**
+     * The index of the ranked replica list of the longest prefix containing the client
+     * network (a ReplicaMapper.clientPrefix), or -1 if none does.
+     */
+    public int lookup(long clientPrefix) {
+        long[] nodes;
+        int[] leaves;
+        long bits;
+        int shift;
+        if (clientPrefix >>> 24 == 4) {
+            nodes = ipv4Nodes;
+            leaves = ipv4Leaves;
+            bits = clientPrefix & 0xFFFFFFL;
+            shift = IPV4_WIDTH - STRIDE;
+        } else if (clientPrefix >>> 56 == 16) {
+            nodes = ipv6Nodes;
+            leaves = ipv6Leaves;
+            bits = (clientPrefix & 0xFFFFFFFFFFFFFFL) << (IPV6_WIDTH - ReplicaMapper.IPV6_PREFIX_BITS);
+            shift = IPV6_WIDTH - STRIDE;
+        } else {
+            return -1; // not an address prefix
+        }
+        int node = 0;
+        while (true) {
+            int slot = (int) (bits >>> shift) & 63;
+            long upToSlot = (2L << slot) - 1;
+            long children = nodes[node * 3];
+            long bases = nodes[node * 3 + 2];
+            if ((children & (1L << slot)) == 0) {
+                return leaves[(int) bases + Long.bitCount(nodes[node * 3 + 1] & upToSlot) - 1];
+            }
+            // Only networks longer than the node create children, so shift stays >= 0.
+            node = (int) (bases >>> 32) + Long.bitCount(children & upToSlot) - 1;
+            shift -= STRIDE;
+        }
+    }
+
+    // The replica IPs of a ranked list, best first.
+    public List<String> rankedList(int index) {
+        return rankedLists.get(index);
+    }
+
+    public int rankedListCount() {
+        return rankedLists.size();
+    }
+
+    // Networks of the table left out for being longer than a client prefix.
+    public int skippedNetworks() {
+        return skippedNetworks;
+    }
+
+    /**
+     * Reads a table of lines "network/length,replica[;replica...][,anything else]", e.g.
+     * "203.0.113.0/24,54.172.123.45;34.213.67.89,US,AS64500". Blank lines, lines starting
+     * with '#' and a header line starting with "network" or "prefix" are skipped.
+     */
+    public static PrefixTrie load(Path csv) throws IOException {
+        Builder builder = new Builder();
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")
+                        || (lineNumber == 1 && (trimmed.startsWith("network") || trimmed.startsWith("prefix")))) {
+                    continue;
+                }
+                String[] fields = trimmed.split(",");
+                if (fields.length < 2) {
+                    throw new IllegalArgumentException(csv + ":" + lineNumber + ": expected network,replicas");
+                }
+                try {
+                    builder.add(fields[0].trim(), Arrays.asList(fields[1].trim().split("\\s*;\\s*")));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(csv + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    // A network of the table: its bits, left-aligned in the family's key width.
+    private static final class Network {
+        final boolean ipv4;
+        final long bits;
+        final int length;
+        final int list;
+
+        Network(boolean ipv4, long bits, int length, int list) {
+            this.ipv4 = ipv4;
+            this.bits = bits;
+            this.length = length;
+            this.list = list;
+        }
+    }
+
+    // Collects networks in any order and builds the trie.
+    public static class Builder {
+
+        private final List<Network> networks = new ArrayList<>();
+        private final List<List<String>> rankedLists = new ArrayList<>();
+        private final Map<List<String>, Integer> listIndex = new HashMap<>();
+        private int skipped;
+
+        /**
+         * Adds a network in CIDR notation with its ranked replica list. Later entries for
+         * the same network win. A network longer than a client prefix is skipped.
+         */
+        public Builder add(String cidr, List<String> rankedReplicas) {
+            int slash = cidr.indexOf('/');
+            if (cidr.isEmpty() || (!Character.isDigit(cidr.charAt(0)) && cidr.indexOf(':') < 0)) {
+                throw new IllegalArgumentException("Invalid network " + cidr); // a host name would be resolved
+            }
+            byte[] address;
+            int length;
+            try {
+                address = InetAddress.getByName(slash >= 0 ? cidr.substring(0, slash) : cidr).getAddress();
+                length = slash >= 0 ? Integer.parseInt(cidr.substring(slash + 1)) : address.length * 8;
+            } catch (UnknownHostException | NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid network " + cidr);
+            }
+            if (length < 0 || length > address.length * 8) {
+                throw new IllegalArgumentException("Prefix length of " + cidr + " not in 0.." + address.length * 8);
+            }
+            if (rankedReplicas.isEmpty() || rankedReplicas.get(0).isEmpty()) {
+                throw new IllegalArgumentException("No replicas for " + cidr);
+            }
+            if (length > ReplicaMapper.prefixBits(address.length)) {
+                skipped++;
+                return this;
+            }
+            List<String> list = List.copyOf(rankedReplicas);
+            Integer index = listIndex.get(list);
+            if (index == null) {
+                index = rankedLists.size();
+                rankedLists.add(list);
+                listIndex.put(list, index);
+            }
+            boolean ipv4 = address.length == 4;
+            long bits = ReplicaMapper.clientPrefix(address, address.length, length) & (ipv4 ? 0xFFFFFFL : 0xFFFFFFFFFFFFFFL);
+            if (!ipv4) {
+                bits <<= IPV6_WIDTH - ReplicaMapper.IPV6_PREFIX_BITS;
+            }
+            networks.add(new Network(ipv4, bits, length, index));
+            return this;
+        }
+
+        public PrefixTrie build() {
+            List<Network> ipv4 = new ArrayList<>();
+            List<Network> ipv6 = new ArrayList<>();
+            for (Network network : networks) {
+                (network.ipv4 ? ipv4 : ipv6).add(network);
+            }
+            return new PrefixTrie(new Family(ipv4, IPV4_WIDTH), new Family(ipv6, IPV6_WIDTH), List.copyOf(rankedLists),
+                    skipped);
+        }
+    }
+
+    // One family's trie while it is built; node 0 is the root.
+    private static final class Family {
+        private final int width;
+        private long[] nodes = new long[3 * 64];
+        private int nodeCount = 1;
+        private int[] leaves = new int[64];
+        private int leafCount;
+
+        Family(List<Network> networks, int width) {
+            this.width = width;
+            // Sorted by bits, so the networks below any node are one run of the list.
+            List<Network> sorted = new ArrayList<>(networks);
+            sorted.sort((a, b) -> Long.compareUnsigned(a.bits, b.bits));
+            build(0, 0, sorted, -1);
+        }
+
+        /**
+         * Fills in a node at the given depth from the networks that reach it, starting from
+         * the leaf its parent slot had (-1 for none).
+         */
+        private void build(int node, int depth, List<Network> networks, int inherited) {
+            int end = (depth + 1) * STRIDE;
+            int shift = width - end;
+            int[] slotLeaves = new int[64];
+            Arrays.fill(slotLeaves, inherited);
+            // Networks ending in this node, shortest first so longer ones overwrite them
+            // (the sort is stable: of two equal networks the later one wins).
+            List<Network> ending = new ArrayList<>();
+            for (Network network : networks) {
+                if (network.length <= end) {
+                    ending.add(network);
+                }
+            }
+            ending.sort((a, b) -> Integer.compare(a.length, b.length));
+            for (Network network : ending) {
+                int unused = end - network.length;
+                int first = (int) (network.bits >>> shift) & 63 & ~((1 << unused) - 1);
+                Arrays.fill(slotLeaves, first, first + (1 << unused), network.list);
+            }
+            // Longer networks go to the children, grouped by slot.
+            List<List<Network>> childNetworks = new ArrayList<>();
+            long childBitmap = 0;
+            for (Network network : networks) {
+                if (network.length > end) {
+                    int slot = (int) (network.bits >>> shift) & 63;
+                    if ((childBitmap & (1L << slot)) == 0) {
+                        childBitmap |= 1L << slot;
+                        childNetworks.add(new ArrayList<>());
+                    }
+                    childNetworks.get(childNetworks.size() - 1).add(network);
+                }
+            }
+            // Runs of equal leaves over the slots without children.
+            long leafBitmap = 0;
+            int leafBase = leafCount;
+            for (int slot = 0; slot < 64; slot++) {
+                if ((childBitmap & (1L << slot)) == 0
+                        && (leafCount == leafBase || leaves[leafCount - 1] != slotLeaves[slot])) {
+                    leafBitmap |= 1L << slot;
+                    if (leafCount == leaves.length) {
+                        leaves = Arrays.copyOf(leaves, leaves.length * 2);
+                    }
+                    leaves[leafCount++] = slotLeaves[slot];
+                }
+            }
+            int childBase = nodeCount;
+            nodeCount += childNetworks.size();
+            if (nodeCount * 3 > nodes.length) {
+                nodes = Arrays.copyOf(nodes, Math.max(nodes.length * 2, nodeCount * 3));
+            }
+            nodes[node * 3] = childBitmap;
+            nodes[node * 3 + 1] = leafBitmap;
+            nodes[node * 3 + 2] = ((long) childBase << 32) | leafBase;
+            int child = 0;
+            for (int slot = 0; slot < 64; slot++) {
+                if ((childBitmap & (1L << slot)) != 0) {
+                    build(childBase + child, depth + 1, childNetworks.get(child), slotLeaves[slot]);
+                    child++;
+                }
+            }
+        }
+
+        long[] nodes() {
+            return Arrays.copyOf(nodes, nodeCount * 3);
+        }
+
+        int[] leaves() {
+            return Arrays.copyOf(leaves, leafCount);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The DNS server's end of RTT probing (see RttProber for the protocol).
+ *
+ * The DNS server tells the collector which client networks it answers, together with an
+ * address to probe each one at. The collector keeps them in a fixed, direct-mapped table,
+ * the same way AnswerCache keeps answers, so noting a network that is already known costs
+ * one array read. Each replica's prober gets the recently seen networks in batches,
+ * walking the table with its own cursor, so every replica measures every network. The RTTs
+ * it reports go into the ReplicaSelector.
+ *
+ * A report is taken only from a replica of the selector's current set, connecting from the
+ * address it reports for: anyone else could otherwise steer clients to a replica of their
+ * choosing by reporting low RTTs for it. Offending connections are closed.
+ */
+public class ProbeCollector {
+
+    // A network is handed out for probing while it was seen within this many ticks.
+    static final int MAX_AGE_TICKS = 600;
+
+    // A client network seen recently, where to probe it, and the tick it was last seen in.
+    private static final class Target {
+        final long prefix;
+        final byte[] address;
+        final int tick;
+
+        Target(long prefix, byte[] address, int tick) {
+            this.prefix = prefix;
+            this.address = address;
+            this.tick = tick;
+        }
+    }
+
+    private final ReplicaSelector selector;
+    private final AtomicReferenceArray<Target> recent;
+    private final int mask;
+    // Seconds since start; advanced by tick() so the hot path never reads the clock.
+    private volatile int tick;
+    // Each prober's position in the table, by replica address.
+    private final ConcurrentHashMap<String, Integer> cursors = new ConcurrentHashMap<>();
+    private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+
+    final LongAdder samples = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param size number of networks remembered, rounded up to a power of two
+     */
+    public ProbeCollector(ReplicaSelector selector, int size) {
+        this.selector = selector;
+        int slotCount = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.recent = new AtomicReferenceArray<>(slotCount);
+        this.mask = slotCount - 1;
+    }
+
+    /**
+     * Notes that the client network (a ReplicaMapper.clientPrefix) was answered. The query
+     * supplies the address to probe: the EDNS Client Subnet if it has one, else the client's
+     * own (resolver) address.
+     */
+    void seen(long prefix, InetAddress client, DNSCodec.Query query) {
+        int slot = (int) ((prefix * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        Target target = recent.get(slot);
+        int now = tick;
+        if (target != null && target.prefix == prefix && target.tick == now) {
+            return;
+        }
+        recent.set(slot, new Target(prefix, probeAddress(client, query), now));
+    }
+
+    // Advances the clock of seen(); call once a second.
+    void tick() {
+        tick++;
+    }
+
+    /**
+     * Accepts prober connections on the port of the bind address (null for all interfaces).
+     * Each connection is served on its own virtual thread.
+     */
+    public void start(String bindAddress, int port) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(bindAddress != null ? new InetSocketAddress(bindAddress, port) : new InetSocketAddress(port));
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    connections.execute(() -> serve(socket));
+                } catch (IOException e) {
+                    // keep accepting
+                }
+            }
+        }, "probe-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Probe collector started on " + (bindAddress != null ? bindAddress + ":" : "port ") + port);
+    }
+
+    private void serve(Socket socket) {
+        String peer = socket.getInetAddress().getHostAddress();
+        try (socket) {
+            socket.setSoTimeout(5 * 60_000);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                RttProber.readHeader(in, RttProber.TYPE_REPORT);
+                byte[] replica = new byte[4];
+                in.readFully(replica);
+                String replicaIP = InetAddress.getByAddress(replica).getHostAddress();
+                if (!replicaIP.equals(peer) || !selector.replicaIPs().contains(replicaIP)) {
+                    rejected.increment();
+                    return;
+                }
+                int wanted = Math.min(in.readUnsignedShort(), RttProber.MAX_BATCH);
+                int count = in.readUnsignedShort();
+                if (count > RttProber.MAX_BATCH) {
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    long prefix = in.readLong();
+                    long micros = in.readInt() & 0xFFFFFFFFL;
+                    selector.recordRtt(prefix, replicaIP, micros / 1000.0);
+                }
+                samples.add(count);
+                List<Target> targets = batch(replicaIP, wanted);
+                out.writeShort(RttProber.MAGIC);
+                out.writeByte(RttProber.VERSION);
+                out.writeByte(RttProber.TYPE_TARGETS);
+                out.writeShort(targets.size());
+                for (Target target : targets) {
+                    out.writeLong(target.prefix);
+                    out.writeByte(target.address.length);
+                    out.write(target.address);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // prober went away or spoke garbage; it reconnects
+        }
+    }
+
+    // Up to max recently seen networks, continuing where this replica's last batch ended.
+    private List<Target> batch(String replicaIP, int max) {
+        int start = cursors.getOrDefault(replicaIP, 0);
+        int oldest = tick - MAX_AGE_TICKS;
+        List<Target> batch = new ArrayList<>(Math.min(max, 256));
+        int slot = start;
+        for (int scanned = 0; scanned <= mask && batch.size() < max; scanned++) {
+            Target target = recent.get(slot);
+            if (target != null && target.tick >= oldest) {
+                batch.add(target);
+            }
+            slot = (slot + 1) & mask;
+        }
+        cursors.put(replicaIP, slot);
+        return batch;
+    }
+
+    // The subnet's address with the lowest host bit set (its first host, often a gateway
+    // that answers), or the client's own address.
+    private static byte[] probeAddress(InetAddress client, DNSCodec.Query query) {
+        if (!query.clientSubnet || query.subnetSourcePrefix == 0) {
+            return client.getAddress();
+        }
+        int length = query.subnetAddressLength();
+        byte[] address = new byte[length];
+        System.arraycopy(query.subnetAddress, 0, address, 0, length);
+        if (query.subnetSourcePrefix < length * 8) {
+            address[length - 1] |= 1;
+        }
+        return address;
+    }
+}
@@ -1,25 +1,113 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.List;
 
 public class ReplicaMapper {
-    // A list of replica server IP addresses (as Strings).
-    // In a real deployment these could be read from configuration.
-    private static final List<String> replicaIPs = Arrays.asList(
+    // Clients are mapped by network, not by host: an IPv4 /24 or an IPv6 /56 (the prefix
+    // lengths resolvers commonly use for EDNS Client Subnet) always gets the same replica.
+    static final int IPV4_PREFIX_BITS = 24;
+    static final int IPV6_PREFIX_BITS = 56;
+
+    // The replica server IP addresses until DNSServer -r loads the pool from a file (see
+    // ReplicaRegistry); the selector picks among them by measured RTT, load and health.
+    private static final ReplicaSelector selector = new ReplicaSelector(Arrays.asList(
             "54.172.123.45",  // Replica 1 (e.g., US)
             "34.213.67.89",   // Replica 2 (e.g., Europe)
             "52.201.98.123"   // Replica 3 (e.g., Asia)
-    );
+    ));
 
     /**
-     * Given a client IP (or any identifier) returns the best replica IP.
-     * In this simple implementation, we simply compute the hash modulo the number of replicas.
+     * Given a client IP (or any identifier) returns the best replica IP for the client's
+     * network prefix; identifiers that are not IP addresses are hashed as they are.
      */
     public static String getBestReplica(String clientIP) {
-        int hash = clientIP.hashCode();
-        if (hash < 0) {
-            hash = -hash;
+        long key = clientIP.hashCode();
+        if (isAddressLiteral(clientIP)) {
+            try {
+                key = clientPrefix(InetAddress.getByName(clientIP));
+            } catch (UnknownHostException e) {
+                // not a valid address after all: keep the plain hash
+            }
+        }
+        return selector.select(key).ip;
+    }
+
+    /**
+     * Like getBestReplica, for the DNS hot path: returns the replica's 4-byte IPv4 address.
+     * The returned array is shared and must not be modified.
+     */
+    public static byte[] getBestReplicaAddress(InetAddress client) {
+        return getBestReplicaAddress(clientPrefix(client));
+    }
+
+    // The same for a network already reduced to its clientPrefix.
+    public static byte[] getBestReplicaAddress(long clientPrefix) {
+        return selector.select(clientPrefix).address;
+    }
+
+    /**
+     * Replaces the replica list. Answers cached for the previous list become invalid,
+     * since they carry an older generation.
+     */
+    public static void setReplicas(List<String> replicaIPs) {
+        selector.setReplicas(replicaIPs);
+    }
+
+    /**
+     * Changes whenever the mapping does; anything derived from the mapping is valid only
+     * for the generation it was computed in.
+     */
+    public static long generation() {
+        return selector.generation();
+    }
+
+    // The selector behind the mapping, for feeding it measurements, load and health.
+    public static ReplicaSelector selector() {
+        return selector;
+    }
+
+    /**
+     * The client's network as a number: the IPv4 /24 or IPv6 /56 prefix, tagged with the
+     * address family so the two never collide.
+     */
+    public static long clientPrefix(InetAddress client) {
+        byte[] address = client.getAddress();
+        return clientPrefix(address, address.length, prefixBits(address.length));
+    }
+
+    /**
+     * The same for a network known only to prefixBits bits, such as an EDNS Client Subnet:
+     * address holds a 4- or 16-byte address (length) whose bits past prefixBits are
+     * ignored. Networks shorter than the mapping prefix map as if zero-filled.
+     */
+    public static long clientPrefix(byte[] address, int length, int prefixBits) {
+        int bits = Math.min(prefixBits, prefixBits(length));
+        long prefix = length;
+        for (int i = 0; i < prefixBits(length) / 8; i++) {
+            int remaining = bits - i * 8;
+            int mask = remaining >= 8 ? 0xFF : remaining <= 0 ? 0 : (0xFF << (8 - remaining)) & 0xFF;
+            prefix = (prefix << 8) | (address[i] & mask);
+        }
+        return prefix;
+    }
+
+    // How many leading bits of an address of the given length the mapping looks at.
+    public static int prefixBits(int addressLength) {
+        return addressLength == 4 ? IPV4_PREFIX_BITS : IPV6_PREFIX_BITS;
+    }
+
+    // True for strings that InetAddress parses without a name lookup.
+    private static boolean isAddressLiteral(String s) {
+        if (s.indexOf(':') >= 0) {
+            return true;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
         }
-        int index = hash % replicaIPs.size();
-        return replicaIPs.get(index);
+        return !s.isEmpty();
     }
 }
@@ -0,0 +1,213 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms of one replica, rendered in the Prometheus text
+ * exposition format.
+ *
+ * Everything on the request path is a LongAdder increment or a histogram record, so
+ * keeping metrics costs far less than the per-request log lines it replaces. Gauges are
+ * read only when the endpoint is scraped.
+ */
+public class ReplicaMetrics {
+
+    // How a request was answered.
+    enum Result {
+        HIT("hit"),       // fresh from the memory cache
+        STALE("stale"),   // expired memory entry served while it is revalidated
+        DISK("disk"),     // from the disk tier
+        MISS("miss"),     // fetched from the origin, or waited for another request's fetch
+        ERROR("error");   // origin failure or aborted response
+
+        final String label;
+
+        Result(String label) {
+            this.label = label;
+        }
+    }
+
+    static final String LOAD_HEADER = "X-Replica-Load";
+
+    // Histogram bucket bounds exposed to Prometheus, in seconds.
+    private static final double[] BUCKET_BOUNDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final EnumMap<Result, LongAdder> requests = new EnumMap<>(Result.class);
+    private final EnumMap<Result, LatencyHistogram> latency = new EnumMap<>(Result.class);
+    // Requests being served right now.
+    final LongAdder inFlight = new LongAdder();
+    final LongAdder bytesServed = new LongAdder();
+    final LongAdder notModified = new LongAdder();
+    final LongAdder partialContent = new LongAdder();
+    final LatencyHistogram originFetch = new LatencyHistogram();
+    final LongAdder originErrors = new LongAdder();
+    final LongAdder refreshes = new LongAdder();
+    final LongAdder refreshFailures = new LongAdder();
+    final LongAdder peerFetches = new LongAdder();
+    final LongAdder peerErrors = new LongAdder();
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    private static class Gauge {
+        final String name;
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Gauge(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    public ReplicaMetrics() {
+        for (Result result : Result.values()) {
+            requests.put(result, new LongAdder());
+            latency.put(result, new LatencyHistogram());
+        }
+    }
+
+    void recordRequest(Result result, long nanos) {
+        requests.get(result).increment();
+        latency.get(result).recordNanos(nanos);
+    }
+
+    /**
+     * Registers a value owned by another component (cache occupancy, pool usage, ...),
+     * read at scrape time.
+     */
+    void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "gauge", value));
+    }
+
+    // Like gauge(), for a value that only ever grows.
+    void counter(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "counter", value));
+    }
+
+    public String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        header(out, "cdn_requests_total", "Requests by how they were answered.", "counter");
+        for (Result result : Result.values()) {
+            out.append("cdn_requests_total{result=\"").append(result.label).append("\"} ")
+                    .append(requests.get(result).sum()).append('\n');
+        }
+        simple(out, "cdn_requests_in_flight", "Requests being served.", "gauge", inFlight.sum());
+        simple(out, "cdn_bytes_served_total", "Response body bytes sent to clients.", "counter", bytesServed.sum());
+        simple(out, "cdn_not_modified_total", "Requests answered with 304 Not Modified.", "counter", notModified.sum());
+        simple(out, "cdn_partial_content_total", "Requests answered with 206 Partial Content.", "counter",
+                partialContent.sum());
+        simple(out, "cdn_origin_errors_total", "Origin fetches that failed.", "counter", originErrors.sum());
+        simple(out, "cdn_refreshes_total", "Background revalidations started.", "counter", refreshes.sum());
+        simple(out, "cdn_refresh_failures_total", "Background revalidations that failed.", "counter",
+                refreshFailures.sum());
+        simple(out, "cdn_peer_fetches_total", "Fetches from the replica that owns the path.", "counter",
+                peerFetches.sum());
+        simple(out, "cdn_peer_errors_total", "Peer fetches that failed and fell back to the origin.", "counter",
+                peerErrors.sum());
+
+        EnumMap<Result, LatencyHistogram.Snapshot> snapshots = new EnumMap<>(Result.class);
+        for (Result result : Result.values()) {
+            snapshots.put(result, latency.get(result).snapshot());
+        }
+        header(out, "cdn_request_duration_seconds", "Time to answer a request, by result.", "histogram");
+        for (Result result : Result.values()) {
+            histogram(out, "cdn_request_duration_seconds", "result=\"" + result.label + "\"", snapshots.get(result));
+        }
+        header(out, "cdn_request_duration_quantile_seconds", "Request latency quantiles since start, by result.",
+                "gauge");
+        for (Result result : Result.values()) {
+            quantiles(out, "cdn_request_duration_quantile_seconds", "result=\"" + result.label + "\",",
+                    snapshots.get(result));
+        }
+        header(out, "cdn_origin_fetch_duration_seconds", "Time to fetch a complete body from the origin.", "histogram");
+        LatencyHistogram.Snapshot origin = originFetch.snapshot();
+        histogram(out, "cdn_origin_fetch_duration_seconds", "", origin);
+        header(out, "cdn_origin_fetch_duration_quantile_seconds", "Origin fetch time quantiles since start.", "gauge");
+        quantiles(out, "cdn_origin_fetch_duration_quantile_seconds", "", origin);
+
+        for (Gauge gauge : gauges) {
+            simple(out, gauge.name, gauge.help, gauge.type, gauge.value.getAsLong());
+        }
+        return out.toString();
+    }
+
+    /**
+     * Starts a separate HTTP server for monitoring: /metrics for Prometheus, /health (the
+     * process is up) and /ready (the replica wants traffic). /ready also reports the load,
+     * 0 (idle) to 1 (saturated), in an X-Replica-Load header, for the DNS tier's
+     * ReplicaRegistry to weigh the replica by.
+     */
+    public HttpServer startEndpoint(int port, BooleanSupplier ready, DoubleSupplier load) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.createContext("/health", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.createContext("/ready", exchange -> {
+            exchange.getResponseHeaders().set(LOAD_HEADER,
+                    String.format(Locale.ROOT, "%.3f", Math.max(0, Math.min(1, load.getAsDouble()))));
+            exchange.sendResponseHeaders(ready.getAsBoolean() ? 200 : 503, -1);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void simple(StringBuilder out, String name, String help, String type, long value) {
+        header(out, name, help, type);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram.Snapshot snapshot) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        for (double bound : BUCKET_BOUNDS) {
+            out.append(name).append("_bucket{").append(prefix).append("le=\"").append(format(bound)).append("\"} ")
+                    .append(snapshot.countAtOrBelow((long) (bound * 1_000_000))).append('\n');
+        }
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(snapshot.count).append('\n');
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ').append(format(snapshot.sumMicros / 1e6)).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(snapshot.count).append('\n');
+    }
+
+    private static void quantiles(StringBuilder out, String name, String labelPrefix, LatencyHistogram.Snapshot snapshot) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labelPrefix).append("quantile=\"").append(format(quantile)).append("\"} ")
+                    .append(format(snapshot.valueAtQuantile(quantile) / 1e6)).append('\n');
+        }
+    }
+
+    private static String format(double value) {
+        String s = String.format(Locale.ROOT, "%.6f", value);
+        s = s.replaceAll("0+$", "");
+        return s.endsWith(".") ? s.substring(0, s.length() - 1) : s;
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The DNS tier's replica pool. Which replicas there are comes from a configuration file,
+ * reloaded when it changes. Which of them are healthy comes from periodic checks of each
+ * replica's readiness endpoint: HTTPServerCDN's /ready on its metrics port, which also
+ * keeps a replica out while it is still warming its cache. The same response carries the
+ * replica's load (ReplicaMetrics.LOAD_HEADER), which is passed on to the selector.
+ *
+ * A replica leaves the answers after FAIL_THRESHOLD failed checks in a row and comes back
+ * after RISE_THRESHOLD good ones, so one lost check does not make it flap. Replicas added
+ * to the file are checked before they get traffic. Every change goes to the
+ * ReplicaSelector, whose new generation makes the DNS server encode its answers again at
+ * once. The pool counts as changing from the first failed check or file change until
+ * settleSeconds after the last change; meanwhile the DNS server hands out a short TTL, so
+ * resolvers come back soon when the next change follows.
+ *
+ * File format, one replica per line: "address[,healthHost:port]", e.g.
+ * "54.172.123.45,54.172.123.45:9101". Without an endpoint the replica's /ready is checked
+ * on the default health port, or not at all if that is 0. Blank lines and lines starting
+ * with '#' are skipped.
+ *
+ * All changes are made on the registry's own thread; metrics are read from anywhere.
+ */
+public class ReplicaRegistry {
+
+    static final int FAIL_THRESHOLD = 2;
+    static final int RISE_THRESHOLD = 2;
+
+    // One replica of the pool and its check history.
+    private static final class Member {
+        final String ip;
+        final String healthHost;
+        final int healthPort; // 0: not checked
+        volatile boolean healthy = true;
+        // Consecutive results, kept by the registry thread only.
+        int failures;
+        int successes;
+        volatile long lastCheckMicros = -1;
+        // Load reported by the last check, -1 if it reported none.
+        volatile double load = -1;
+        final AtomicLong failedChecks = new AtomicLong();
+
+        Member(String ip, String healthHost, int healthPort) {
+            this.ip = ip;
+            this.healthHost = healthHost;
+            this.healthPort = healthPort;
+        }
+
+        String key() {
+            return ip + "," + healthHost + ":" + healthPort;
+        }
+    }
+
+    private final ReplicaSelector selector;
+    private final Path file; // null: the selector's replicas as they are
+    private final int defaultHealthPort;
+    private final int timeoutMillis;
+    private final long settleNanos;
+    private final ExecutorService checkers = Executors.newVirtualThreadPerTaskExecutor();
+
+    private volatile List<Member> members;
+    private FileTime fileModified;
+    // The pool is changing until System.nanoTime() passes this.
+    private volatile long settledAtNanos = System.nanoTime();
+
+    private final LongAdder poolChanges = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder reloadErrors = new LongAdder();
+
+    /**
+     * @param file              replica file, or null to check the selector's current replicas
+     * @param defaultHealthPort port of /ready for replicas without an endpoint; 0 for none
+     * @param timeoutMillis     connect and read timeout of one check
+     * @param settleSeconds     how long the pool counts as changing after a change
+     */
+    public ReplicaRegistry(ReplicaSelector selector, Path file, int defaultHealthPort, int timeoutMillis,
+            int settleSeconds) {
+        this.selector = selector;
+        this.file = file;
+        this.defaultHealthPort = defaultHealthPort;
+        this.timeoutMillis = timeoutMillis;
+        this.settleNanos = TimeUnit.SECONDS.toNanos(settleSeconds);
+        List<Member> initial = new ArrayList<>();
+        for (String ip : selector.replicaIPs()) {
+            initial.add(new Member(ip, ip, defaultHealthPort));
+        }
+        this.members = initial;
+    }
+
+    /**
+     * Loads the file and checks every replica once, then keeps doing both every interval on
+     * a daemon thread.
+     */
+    public void start(int intervalSeconds) throws IOException {
+        if (file != null) {
+            reload();
+        }
+        check();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-registry");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (file != null) {
+                try {
+                    reload();
+                } catch (IOException | RuntimeException e) {
+                    reloadErrors.increment();
+                    System.out.println("Replica file not reloaded: " + e.getMessage());
+                }
+            }
+            check();
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // True while the DNS server should hand out its short TTL.
+    public boolean changing() {
+        return System.nanoTime() - settledAtNanos < 0;
+    }
+
+    /**
+     * Reads the file if it changed since the last read and makes it the pool. Replicas that
+     * stay keep their health; new ones are checked first and start up only if they pass.
+     */
+    private void reload() throws IOException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        if (modified.equals(fileModified)) {
+            return;
+        }
+        boolean initial = fileModified == null;
+        fileModified = modified; // a broken file is retried only once it changes again
+        List<Member> parsed = parse(file, defaultHealthPort);
+        Map<String, Member> current = new HashMap<>();
+        for (Member member : members) {
+            current.put(member.key(), member);
+        }
+        List<Member> updated = new ArrayList<>();
+        List<Member> added = new ArrayList<>();
+        List<String> ips = new ArrayList<>();
+        for (Member member : parsed) {
+            Member existing = current.get(member.key());
+            updated.add(existing != null ? existing : member);
+            ips.add(member.ip);
+            if (existing == null) {
+                added.add(member);
+            }
+        }
+        for (Member member : added) {
+            if (member.healthPort > 0) {
+                member.healthy = probe(member);
+            }
+        }
+        Map<String, Boolean> health = new HashMap<>();
+        for (Member member : updated) {
+            health.put(member.ip, member.healthy);
+        }
+        selector.setReplicas(ips, health);
+        for (Member member : added) {
+            if (member.load >= 0) {
+                selector.setLoad(member.ip, member.load);
+            }
+        }
+        boolean changed = !ips.equals(members.stream().map(m -> m.ip).toList());
+        members = List.copyOf(updated);
+        reloads.increment();
+        if (changed && !initial) {
+            changed();
+        }
+        System.out.println("Replica file " + file + " loaded: " + ips.size() + " replicas, " + healthyCount()
+                + " healthy");
+    }
+
+    // Checks all replicas that have an endpoint at once and applies the results.
+    private void check() {
+        List<Member> current = members;
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (Member member : current) {
+            results.add(member.healthPort > 0 ? checkers.submit(() -> probe(member)) : null);
+        }
+        for (int i = 0; i < current.size(); i++) {
+            if (results.get(i) == null) {
+                continue;
+            }
+            boolean ok;
+            try {
+                ok = results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                ok = false;
+            }
+            Member member = current.get(i);
+            record(member, ok);
+            if (ok && member.load >= 0) {
+                selector.setLoad(member.ip, member.load);
+            }
+        }
+    }
+
+    private void record(Member member, boolean ok) {
+        if (ok) {
+            member.failures = 0;
+            member.successes++;
+            if (!member.healthy && member.successes >= RISE_THRESHOLD) {
+                setHealthy(member, true);
+            }
+        } else {
+            member.successes = 0;
+            member.failures++;
+            member.failedChecks.incrementAndGet();
+            if (member.healthy) {
+                changed(); // suspect: shorten the TTL before the replica is taken out
+                if (member.failures >= FAIL_THRESHOLD) {
+                    setHealthy(member, false);
+                }
+            }
+        }
+    }
+
+    private void setHealthy(Member member, boolean healthy) {
+        member.healthy = healthy;
+        selector.setHealthy(member.ip, healthy);
+        changed();
+        System.out.println("Replica " + member.ip + (healthy ? " is healthy again" : " is unhealthy, removed from answers")
+                + " (" + healthyCount() + " of " + members.size() + " healthy)");
+    }
+
+    private void changed() {
+        poolChanges.increment();
+        settledAtNanos = System.nanoTime() + settleNanos;
+    }
+
+    /**
+     * One check: GET /ready, healthy only on 200. Records how long it took and the load the
+     * replica reported, and returns false on any error or timeout.
+     */
+    private boolean probe(Member member) {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(member.healthHost, member.healthPort), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /ready HTTP/1.1\r\nHost: " + member.healthHost + ":" + member.healthPort
+                    + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] head = new byte[1024]; // status line and headers; /ready has no body
+            int read = 0;
+            String response = "";
+            while (read < head.length && !response.contains("\r\n\r\n")) {
+                int n = in.read(head, read, head.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+                response = new String(head, 0, read, StandardCharsets.US_ASCII);
+            }
+            member.load = load(response);
+            return response.length() >= 12 && response.substring(0, 12).endsWith(" 200"); // "HTTP/1.1 200"
+        } catch (IOException e) {
+            return false;
+        } finally {
+            member.lastCheckMicros = (System.nanoTime() - start) / 1000;
+        }
+    }
+
+    // The load header of a /ready response, -1 if it is missing or not within 0..1.
+    private static double load(String response) {
+        for (String line : response.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(ReplicaMetrics.LOAD_HEADER)) {
+                try {
+                    double load = Double.parseDouble(line.substring(colon + 1).trim());
+                    return load >= 0 && load <= 1 ? load : -1;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int healthyCount() {
+        int healthy = 0;
+        for (Member member : members) {
+            if (member.healthy) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    private static List<Member> parse(Path file, int defaultHealthPort) throws IOException {
+        List<Member> parsed = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = trimmed.split("\\s*,\\s*");
+                String ip = fields[0];
+                if (!isIPv4Literal(ip)) {
+                    throw new IllegalArgumentException(file + ":" + lineNumber + ": not an IPv4 address: " + ip);
+                }
+                String host = ip;
+                int port = defaultHealthPort;
+                if (fields.length > 1) {
+                    int colon = fields[1].lastIndexOf(':');
+                    try {
+                        host = fields[1].substring(0, colon);
+                        port = Integer.parseInt(fields[1].substring(colon + 1));
+                    } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                        throw new IllegalArgumentException(file + ":" + lineNumber + ": expected host:port, not "
+                                + fields[1]);
+                    }
+                }
+                parsed.add(new Member(ip, host, port));
+            }
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException(file + ": no replicas");
+        }
+        return parsed;
+    }
+
+    private static boolean isIPv4Literal(String s) {
+        if (s.isEmpty() || !Character.isDigit(s.charAt(0))) {
+            return false; // a host name would be resolved
+        }
+        try {
+            return InetAddress.getByName(s).getAddress().length == 4;
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    // Appends the pool state in the Prometheus text format.
+    void appendMetrics(StringBuilder out) {
+        List<Member> current = members;
+        ReplicaMetrics.simple(out, "dns_replicas", "Replicas in the pool.", "gauge", current.size());
+        ReplicaMetrics.simple(out, "dns_replicas_healthy", "Replicas in the pool that are given out.", "gauge",
+                healthyCount());
+        ReplicaMetrics.simple(out, "dns_replica_pool_changing", "1 while answers carry the short TTL.", "gauge",
+                changing() ? 1 : 0);
+        ReplicaMetrics.simple(out, "dns_replica_pool_changes_total",
+                "Replicas going up or down, suspect checks and file changes.", "counter", poolChanges.sum());
+        ReplicaMetrics.simple(out, "dns_replica_file_reloads_total", "Replica file loads.", "counter", reloads.sum());
+        ReplicaMetrics.simple(out, "dns_replica_file_errors_total", "Replica file loads that failed.", "counter",
+                reloadErrors.sum());
+        ReplicaMetrics.header(out, "dns_replica_healthy", "1 if the replica is given out.", "gauge");
+        for (Member member : current) {
+            out.append("dns_replica_healthy{replica=\"").append(member.ip).append("\"} ")
+                    .append(member.healthy ? 1 : 0).append('\n');
+        }
+        ReplicaMetrics.header(out, "dns_replica_load", "Load the replica reported, 0 idle to 1 saturated.", "gauge");
+        for (Member member : current) {
+            if (member.load >= 0) {
+                out.append("dns_replica_load{replica=\"").append(member.ip).append("\"} ")
+                        .append(String.format(Locale.ROOT, "%.3f", member.load)).append('\n');
+            }
+        }
+        ReplicaMetrics.header(out, "dns_replica_check_failures_total", "Failed health checks.", "counter");
+        for (Member member : current) {
+            out.append("dns_replica_check_failures_total{replica=\"").append(member.ip).append("\"} ")
+                    .append(member.failedChecks.get()).append('\n');
+        }
+        ReplicaMetrics.header(out, "dns_replica_check_duration_seconds", "Duration of the last health check.",
+                "gauge");
+        for (Member member : current) {
+            if (member.lastCheckMicros >= 0) {
+                out.append("dns_replica_check_duration_seconds{replica=\"").append(member.ip).append("\"} ")
+                        .append(String.format(Locale.ROOT, "%.6f", member.lastCheckMicros / 1e6)).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Picks the replica for a client network from measured round-trip times, replica load and
+ * replica health.
+ *
+ * For every client prefix with measurements the selector keeps an exponentially weighted
+ * moving average (EWMA) of the RTT to each replica, and picks the healthy replica whose
+ * RTT, inflated by its reported load, is lowest. With a small probability (the exploration
+ * rate) it picks another healthy replica instead, one not yet measured for the prefix if
+ * there is one, so replicas that are not the current best get measured and one that has
+ * become faster gets noticed. Prefixes without measurements get the first healthy replica
+ * of their ranked list in the geo table (a PrefixTrie), if one is loaded and covers them,
+ * and are spread over the healthy, unsaturated replicas by rendezvous hashing otherwise.
+ *
+ * Selecting never blocks: the replica set is an immutable snapshot behind a volatile, the
+ * estimates are atomics updated by compare-and-set, and a selection is one hash map read
+ * and a scan over a handful of replicas. Selections are meant to be cached (AnswerCache
+ * does) for as long as generation() stays the same. It changes with the replica set or a
+ * replica's health at once, and on refresh() when measurements or loads have arrived since
+ * the last refresh.
+ */
+public class ReplicaSelector {
+
+    static final double DEFAULT_EWMA_ALPHA = 0.2;
+    static final double DEFAULT_EXPLORATION_RATE = 0.05;
+    // How much a saturated replica's RTT is inflated: score = rtt * (1 + weight * load).
+    static final double DEFAULT_LOAD_WEIGHT = 1.0;
+    // From this load on, a replica takes no more unmeasured networks (see pick).
+    static final double SATURATED_LOAD = 0.9;
+    // Client prefixes tracked at most. When a new prefix finds the table full, estimates not
+    // updated for MAX_ESTIMATE_AGE_MILLIS make room, or failing that the older half of them.
+    static final int MAX_PREFIXES = 1 << 20;
+    static final long MAX_ESTIMATE_AGE_MILLIS = 30 * 60_000;
+
+    // One replica and what is known about it as a whole.
+    static final class Replica {
+        final String ip;
+        final byte[] address;
+        // Identifies the replica in rendezvous hashing, the same on every DNS server.
+        final long hash;
+        volatile boolean healthy = true;
+        volatile double load; // 0 idle .. 1 saturated
+
+        Replica(String ip) {
+            this.ip = ip;
+            this.hash = ConsistentHashRing.hash(ip);
+            try {
+                this.address = InetAddress.getByName(ip).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Invalid replica address " + ip, e);
+            }
+            if (address.length != 4) {
+                throw new IllegalArgumentException("Replica address is not IPv4: " + ip);
+            }
+        }
+    }
+
+    // A geo table with its ranked lists resolved to indexes into one replica set (replicas
+    // missing from the set left out).
+    private static final class GeoTable {
+        final PrefixTrie trie;
+        final Replica[] replicas;
+        final int[][] ranked;
+
+        GeoTable(PrefixTrie trie, Replica[] replicas) {
+            this.trie = trie;
+            this.replicas = replicas;
+            this.ranked = new int[trie.rankedListCount()][];
+            for (int i = 0; i < ranked.length; i++) {
+                ranked[i] = trie.rankedList(i).stream().mapToInt(ip -> indexOf(replicas, ip))
+                        .filter(index -> index >= 0).toArray();
+            }
+        }
+    }
+
+    // RTT estimates of one client prefix, one slot per replica of the set they belong to.
+    private static final class Estimates {
+        final Replica[] replicas;
+        // Microseconds as double bits; 0 while unmeasured.
+        final AtomicLongArray rttMicros;
+        // When a sample last arrived, epoch millis.
+        volatile long updatedAt;
+
+        Estimates(Replica[] replicas) {
+            this.replicas = replicas;
+            this.rttMicros = new AtomicLongArray(replicas.length);
+        }
+    }
+
+    private volatile Replica[] replicas;
+    private volatile GeoTable geoTable;
+    private final ConcurrentHashMap<Long, Estimates> estimates = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    // When a full estimates table was last swept (see evictStale).
+    private final AtomicLong lastEviction = new AtomicLong();
+    private volatile boolean measured;
+
+    private final double ewmaAlpha;
+    private final double loadWeight;
+    private volatile double explorationRate;
+
+    public ReplicaSelector(List<String> replicaIPs) {
+        this(replicaIPs, DEFAULT_EWMA_ALPHA, DEFAULT_EXPLORATION_RATE, DEFAULT_LOAD_WEIGHT);
+    }
+
+    public ReplicaSelector(List<String> replicaIPs, double ewmaAlpha, double explorationRate, double loadWeight) {
+        this.ewmaAlpha = ewmaAlpha;
+        this.loadWeight = loadWeight;
+        this.explorationRate = explorationRate;
+        this.replicas = toReplicas(replicaIPs, new Replica[0], Map.of());
+    }
+
+    /**
+     * The replica for a client network (a ReplicaMapper.clientPrefix). If no replica is
+     * healthy, all of them are treated as healthy: some answer beats none.
+     */
+    public Replica select(long prefix) {
+        Replica[] current = replicas;
+        boolean anyHealthy = healthyCount(current) > 0;
+        Estimates e = estimates.get(prefix);
+        if (e != null) {
+            if (e.replicas != current) {
+                e = realign(prefix, e, current);
+            }
+            Replica best = null;
+            double bestScore = Double.MAX_VALUE;
+            int unmeasured = 0;
+            for (int i = 0; i < current.length; i++) {
+                Replica r = current[i];
+                double rtt = Double.longBitsToDouble(e.rttMicros.get(i));
+                if (!r.healthy && anyHealthy) {
+                    continue;
+                }
+                if (rtt == 0) {
+                    unmeasured++;
+                    continue;
+                }
+                double score = rtt * (1 + loadWeight * r.load);
+                if (score < bestScore) {
+                    best = r;
+                    bestScore = score;
+                }
+            }
+            if (best != null) {
+                double rate = explorationRate;
+                if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+                    return explore(current, e, unmeasured, anyHealthy);
+                }
+                return best;
+            }
+        }
+        GeoTable geo = geoTable;
+        if (geo != null && geo.replicas == current) {
+            int list = geo.trie.lookup(prefix);
+            if (list >= 0) {
+                for (int index : geo.ranked[list]) {
+                    if (current[index].healthy || !anyHealthy) {
+                        return current[index];
+                    }
+                }
+            }
+        }
+        return pick(current, prefix, anyHealthy);
+    }
+
+    /**
+     * Feeds one RTT sample between a client network and a replica into the estimate.
+     * Samples for replicas that are not in the set are ignored.
+     */
+    public void recordRtt(long prefix, String replicaIP, double rttMillis) {
+        Replica[] current = replicas;
+        int index = indexOf(current, replicaIP);
+        if (index < 0) {
+            return;
+        }
+        Estimates e = estimates.get(prefix);
+        if (e == null) {
+            if (estimates.size() >= MAX_PREFIXES && !evictStale()) {
+                return;
+            }
+            e = estimates.computeIfAbsent(prefix, p -> new Estimates(current));
+        }
+        if (e.replicas != current) {
+            e = realign(prefix, e, current);
+        }
+        double sample = Math.max(1, rttMillis * 1000);
+        while (true) {
+            long bits = e.rttMicros.get(index);
+            double old = Double.longBitsToDouble(bits);
+            double updated = old > 0 ? old + ewmaAlpha * (sample - old) : sample;
+            if (e.rttMicros.compareAndSet(index, bits, Double.doubleToRawLongBits(updated))) {
+                break;
+            }
+        }
+        e.updatedAt = System.currentTimeMillis();
+        measured = true;
+    }
+
+    /**
+     * The current RTT estimate in milliseconds, or -1 if there is none.
+     */
+    public double estimatedRtt(long prefix, String replicaIP) {
+        Replica[] current = replicas;
+        Estimates e = estimates.get(prefix);
+        if (e == null) {
+            return -1;
+        }
+        int index = indexOf(e.replicas, replicaIP);
+        double rtt = index >= 0 ? Double.longBitsToDouble(e.rttMicros.get(index)) : 0;
+        return rtt > 0 && indexOf(current, replicaIP) >= 0 ? rtt / 1000 : -1;
+    }
+
+    /**
+     * Replaces the replica set. Replicas that stay keep their health, load and estimates.
+     */
+    public void setReplicas(List<String> replicaIPs) {
+        setReplicas(replicaIPs, Map.of());
+    }
+
+    /**
+     * Replaces the replica set, with the health of the replicas in the map set as given, so
+     * that no selection sees the new set with the old health (or a new replica as healthy
+     * before its first check). Replicas not in the map keep their health, or start healthy.
+     */
+    public synchronized void setReplicas(List<String> replicaIPs, Map<String, Boolean> health) {
+        replicas = toReplicas(replicaIPs, replicas, health);
+        if (geoTable != null) {
+            geoTable = new GeoTable(geoTable.trie, replicas);
+        }
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Swaps in a geo table (null for none). Selections made with the old one become invalid
+     * at once.
+     */
+    public synchronized void setGeoTable(PrefixTrie trie) {
+        geoTable = trie != null ? new GeoTable(trie, replicas) : null;
+        generation.incrementAndGet();
+    }
+
+    // Marks a replica up or down; selections change immediately.
+    public synchronized void setHealthy(String replicaIP, boolean healthy) {
+        int index = indexOf(replicas, replicaIP);
+        if (index >= 0 && replicas[index].healthy != healthy) {
+            replicas[index].healthy = healthy;
+            generation.incrementAndGet();
+        }
+    }
+
+    // Records a replica's load, from 0 (idle) to 1 (saturated); used from the next refresh().
+    public synchronized void setLoad(String replicaIP, double load) {
+        int index = indexOf(replicas, replicaIP);
+        double clamped = Math.max(0, Math.min(1, load));
+        if (index >= 0 && replicas[index].load != clamped) {
+            replicas[index].load = clamped;
+            measured = true;
+        }
+    }
+
+    public void setExplorationRate(double explorationRate) {
+        this.explorationRate = explorationRate;
+    }
+
+    /**
+     * Starts a new generation if samples or loads arrived since the last call, so cached
+     * selections are made again with them. Call periodically, e.g. once per answer TTL.
+     */
+    public void refresh() {
+        if (measured) {
+            measured = false;
+            generation.incrementAndGet();
+        }
+    }
+
+    public long generation() {
+        return generation.get();
+    }
+
+    public List<String> replicaIPs() {
+        Replica[] current = replicas;
+        String[] ips = new String[current.length];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = current[i].ip;
+        }
+        return List.of(ips);
+    }
+
+    private static Replica[] toReplicas(List<String> replicaIPs, Replica[] previous, Map<String, Boolean> health) {
+        if (replicaIPs.isEmpty()) {
+            throw new IllegalArgumentException("No replicas");
+        }
+        Replica[] updated = new Replica[replicaIPs.size()];
+        for (int i = 0; i < updated.length; i++) {
+            updated[i] = new Replica(replicaIPs.get(i));
+            int old = indexOf(previous, updated[i].ip);
+            if (old >= 0) {
+                updated[i].healthy = previous[old].healthy;
+                updated[i].load = previous[old].load;
+            }
+            updated[i].healthy = health.getOrDefault(updated[i].ip, updated[i].healthy);
+        }
+        return updated;
+    }
+
+    /**
+     * Makes room in a full estimates table, at most once a second: drops the estimates of
+     * prefixes not measured for MAX_ESTIMATE_AGE_MILLIS, or if there are none (the table is
+     * too small for the networks being probed) those older than the midpoint between the
+     * oldest update and now. Returns whether there is room.
+     */
+    private boolean evictStale() {
+        long now = System.currentTimeMillis();
+        long last = lastEviction.get();
+        if (now - last < 1000 || !lastEviction.compareAndSet(last, now)) {
+            return estimates.size() < MAX_PREFIXES;
+        }
+        long cutoff = now - MAX_ESTIMATE_AGE_MILLIS;
+        estimates.values().removeIf(e -> e.updatedAt < cutoff);
+        if (estimates.size() >= MAX_PREFIXES) {
+            long oldest = now;
+            for (Estimates e : estimates.values()) {
+                oldest = Math.min(oldest, e.updatedAt);
+            }
+            long midpoint = oldest + (now - oldest) / 2;
+            estimates.values().removeIf(e -> e.updatedAt <= midpoint);
+        }
+        return estimates.size() < MAX_PREFIXES;
+    }
+
+    // Moves a prefix's estimates over to the current replica set, keeping those of replicas
+    // that are still in it.
+    private Estimates realign(long prefix, Estimates old, Replica[] current) {
+        Estimates moved = new Estimates(current);
+        moved.updatedAt = old.updatedAt;
+        Map<String, Integer> oldIndex = new HashMap<>();
+        for (int i = 0; i < old.replicas.length; i++) {
+            oldIndex.put(old.replicas[i].ip, i);
+        }
+        for (int i = 0; i < current.length; i++) {
+            Integer j = oldIndex.get(current[i].ip);
+            if (j != null) {
+                moved.rttMicros.set(i, old.rttMicros.get(j));
+            }
+        }
+        // Whoever loses the race uses the winner's copy; a sample recorded on the old copy
+        // in between is lost, which one EWMA sample can afford.
+        return estimates.replace(prefix, old, moved) ? moved : estimates.getOrDefault(prefix, moved);
+    }
+
+    // A random healthy replica to learn about, preferring one never measured for the prefix.
+    private static Replica explore(Replica[] current, Estimates e, int unmeasured, boolean anyHealthy) {
+        if (unmeasured == 0) {
+            return pick(current, ThreadLocalRandom.current().nextLong(), anyHealthy);
+        }
+        int n = ThreadLocalRandom.current().nextInt(unmeasured);
+        for (int i = 0; i < current.length; i++) {
+            if ((current[i].healthy || !anyHealthy) && e.rttMicros.get(i) == 0 && n-- == 0) {
+                return current[i];
+            }
+        }
+        return pick(current, ThreadLocalRandom.current().nextLong(), anyHealthy); // measured meanwhile
+    }
+
+    /**
+     * Rendezvous (highest random weight) hashing over the healthy replicas (all of them if
+     * none is healthy): every replica scores the key and the highest score wins, so losing
+     * a replica moves only its own keys and a new replica takes a fair share from each of
+     * the others, where a modulo would reshuffle nearly all keys and cold-start every
+     * replica's cache. A saturated replica hands its keys on to the next-highest score
+     * rather than taking more, which bounds its load the way a bounded-load ring does.
+     */
+    private static Replica pick(Replica[] current, long key, boolean anyHealthy) {
+        Replica best = null;
+        long bestScore = 0;
+        Replica bestUnsaturated = null;
+        long bestUnsaturatedScore = 0;
+        for (Replica r : current) {
+            if (!r.healthy && anyHealthy) {
+                continue;
+            }
+            long score = score(key, r.hash);
+            if (best == null || Long.compareUnsigned(score, bestScore) > 0) {
+                best = r;
+                bestScore = score;
+            }
+            if (r.load < SATURATED_LOAD
+                    && (bestUnsaturated == null || Long.compareUnsigned(score, bestUnsaturatedScore) > 0)) {
+                bestUnsaturated = r;
+                bestUnsaturatedScore = score;
+            }
+        }
+        if (bestUnsaturated != null) {
+            return bestUnsaturated;
+        }
+        return best != null ? best : current[0]; // health changed under us
+    }
+
+    // MurmurHash3's 64-bit finalizer over key and replica.
+    private static long score(long key, long replicaHash) {
+        long h = key ^ replicaHash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int healthyCount(Replica[] current) {
+        int healthy = 0;
+        for (Replica r : current) {
+            if (r.healthy) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    private static int indexOf(Replica[] current, String ip) {
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].ip.equals(ip)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,268 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the round-trip time from this replica to the client networks the DNS server has
+ * seen recently, and reports the results to the DNS server's ProbeCollector.
+ *
+ * Probing needs no ICMP: the prober times a TCP connect to the target (by default port 53,
+ * since most targets are resolvers). An accepted connection and a refused one both take
+ * one round trip, so either counts; only timeouts and unreachable networks give no sample.
+ *
+ * Every round the prober sends the samples of the previous round along with a request for
+ * the next batch of targets, then probes that batch, paced to a maximum probe rate with a
+ * bound on the probes in flight. For tests on one machine an artificial delay can be added
+ * to every sample, so several local replicas look near or far to the DNS server.
+ *
+ * Protocol (big-endian, one long-lived TCP connection, the prober speaks first):
+ *   report:  magic u16 "RT", version u8 1, type u8 1, replica IPv4 (4 bytes),
+ *            targets wanted u16, sample count u16, samples (prefix i64, RTT in us u32)
+ *   targets: magic u16 "RT", version u8 1, type u8 2, target count u16,
+ *            targets (prefix i64, address length u8 (4 or 16), address)
+ * Prefixes are ReplicaMapper.clientPrefix values, which the prober only echoes back.
+ */
+public class RttProber {
+
+    static final int MAGIC = 0x5254;
+    static final int VERSION = 1;
+    static final int TYPE_REPORT = 1;
+    static final int TYPE_TARGETS = 2;
+    // Upper bound for targets and samples per message, to bound both ends' memory.
+    static final int MAX_BATCH = 4096;
+
+    private final InetSocketAddress collector;
+    private final byte[] replicaAddress;
+    private final ProbeConfig config;
+
+    private Socket connection;
+    private DataInputStream in;
+    private DataOutputStream out;
+    // Samples not yet reported: prefix and RTT in microseconds.
+    private final List<long[]> pending = new ArrayList<>();
+
+    /**
+     * @param collector      the DNS server's probe port
+     * @param replicaAddress this replica's IPv4 address as listed in the DNS server's
+     *                       replica set, which the collector also expects the report
+     *                       connection to come from
+     */
+    public RttProber(InetSocketAddress collector, String replicaAddress, ProbeConfig config) throws IOException {
+        this.collector = collector;
+        this.replicaAddress = InetAddress.getByName(replicaAddress).getAddress();
+        if (this.replicaAddress.length != 4) {
+            throw new IllegalArgumentException("Replica address is not IPv4: " + replicaAddress);
+        }
+        this.config = config;
+    }
+
+    // Settings of one prober.
+    public static class ProbeConfig {
+        public int roundSeconds = 10;
+        public int batchSize = 256;
+        public int probesPerSecond = 100;
+        public int maxInFlight = 32;
+        public int probePort = 53;
+        public int timeoutMillis = 1000;
+        // Added to every sample; for testing several replicas on one machine.
+        public int injectedDelayMillis = 0;
+    }
+
+    // Runs rounds on a daemon thread until the process exits.
+    public void start() {
+        Thread prober = new Thread(this::run, "rtt-prober");
+        prober.setDaemon(true);
+        prober.start();
+    }
+
+    private void run() {
+        boolean failing = false;
+        while (true) {
+            try {
+                List<Target> targets = exchange();
+                if (failing) {
+                    System.out.println("RTT prober reconnected to " + collector);
+                    failing = false;
+                }
+                probe(targets);
+            } catch (IOException e) {
+                if (!failing) {
+                    System.out.println("RTT prober cannot reach " + collector + ": " + e.getMessage());
+                    failing = true;
+                }
+                closeConnection();
+            }
+            try {
+                TimeUnit.SECONDS.sleep(config.roundSeconds);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // One network to probe.
+    static final class Target {
+        final long prefix;
+        final InetAddress address;
+
+        Target(long prefix, InetAddress address) {
+            this.prefix = prefix;
+            this.address = address;
+        }
+    }
+
+    // Sends the pending samples with a request for targets and reads the targets.
+    private List<Target> exchange() throws IOException {
+        if (connection == null) {
+            connection = new Socket();
+            connection.connect(collector, config.timeoutMillis);
+            connection.setSoTimeout(30_000);
+            in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        }
+        int count = Math.min(pending.size(), MAX_BATCH);
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(TYPE_REPORT);
+        out.write(replicaAddress);
+        out.writeShort(Math.min(config.batchSize, MAX_BATCH));
+        out.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            long[] sample = pending.get(i);
+            out.writeLong(sample[0]);
+            out.writeInt((int) Math.min(sample[1], 0xFFFFFFFFL));
+        }
+        out.flush();
+        // Samples that did not fit are dropped rather than piling up.
+        pending.clear();
+
+        readHeader(in, TYPE_TARGETS);
+        int targetCount = in.readUnsignedShort();
+        if (targetCount > MAX_BATCH) {
+            throw new IOException("Too many targets: " + targetCount);
+        }
+        List<Target> targets = new ArrayList<>(targetCount);
+        for (int i = 0; i < targetCount; i++) {
+            long prefix = in.readLong();
+            byte[] address = readAddress(in);
+            targets.add(new Target(prefix, InetAddress.getByAddress(address)));
+        }
+        return targets;
+    }
+
+    // Probes the targets at no more than probesPerSecond and keeps the samples for the next
+    // report.
+    private void probe(List<Target> targets) {
+        ConcurrentLinkedQueue<long[]> samples = new ConcurrentLinkedQueue<>();
+        Semaphore inFlight = new Semaphore(config.maxInFlight);
+        long intervalNanos = 1_000_000_000L / Math.max(1, config.probesPerSecond);
+        long next = System.nanoTime();
+        try (ExecutorService probes = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Target target : targets) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                next += intervalNanos;
+                inFlight.acquireUninterruptibly();
+                probes.execute(() -> {
+                    try {
+                        long micros = measure(target.address);
+                        if (micros >= 0) {
+                            samples.add(new long[] { target.prefix, micros });
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        pending.addAll(samples);
+    }
+
+    /**
+     * Times one TCP connect to the address; returns the RTT in microseconds, including
+     * the injected delay, or -1 if the target did not answer in time.
+     */
+    long measure(InetAddress address) {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, config.probePort), config.timeoutMillis);
+        } catch (ConnectException e) {
+            // Refused: the RST took one round trip as well.
+        } catch (IOException e) {
+            return -1;
+        }
+        return (System.nanoTime() - start) / 1000 + config.injectedDelayMillis * 1000L;
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+        connection = null;
+    }
+
+    static void readHeader(DataInputStream in, int type) throws IOException {
+        int magic = in.readUnsignedShort();
+        int version = in.readUnsignedByte();
+        int actualType = in.readUnsignedByte();
+        if (magic != MAGIC || version != VERSION || actualType != type) {
+            throw new IOException("Unexpected probe message " + magic + "/" + version + "/" + actualType);
+        }
+    }
+
+    static byte[] readAddress(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length != 4 && length != 16) {
+            throw new IOException("Bad address length " + length);
+        }
+        byte[] address = new byte[length];
+        in.readFully(address);
+        return address;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Expected arguments: -c <dnsHost:probePort> -r <replicaAddress> [-i <roundSeconds>] [-b <batchSize>] [-rate <probesPerSecond>] [-port <probePort>] [-delay <ms>]
+        String collector = null;
+        String replica = null;
+        ProbeConfig config = new ProbeConfig();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-c": collector = args[i + 1]; break;
+                case "-r": replica = args[i + 1]; break;
+                case "-i": config.roundSeconds = Integer.parseInt(args[i + 1]); break;
+                case "-b": config.batchSize = Integer.parseInt(args[i + 1]); break;
+                case "-rate": config.probesPerSecond = Integer.parseInt(args[i + 1]); break;
+                case "-port": config.probePort = Integer.parseInt(args[i + 1]); break;
+                case "-delay": config.injectedDelayMillis = Integer.parseInt(args[i + 1]); break;
+                default: break;
+            }
+        }
+        if (collector == null || replica == null || collector.lastIndexOf(':') < 0) {
+            System.err.println("Usage: java RttProber -c <dnsHost:probePort> -r <replicaAddress> [-i <roundSeconds>]"
+                    + " [-b <batchSize>] [-rate <probesPerSecond>] [-port <probePort>] [-delay <ms>]");
+            System.exit(1);
+        }
+        int colon = collector.lastIndexOf(':');
+        new RttProber(new InetSocketAddress(collector.substring(0, colon), Integer.parseInt(collector.substring(colon + 1))),
+                replica, config).run();
+    }
+}
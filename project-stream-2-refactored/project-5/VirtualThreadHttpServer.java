@@ -0,0 +1,660 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A small HTTP/1.1 server that runs every client connection on its own virtual thread.
+ *
+ * Requests are dispatched to a regular {@link HttpHandler}, so the same handler can be
+ * mounted on this engine or on the JDK {@link com.sun.net.httpserver.HttpServer}.
+ * Connections are kept alive between requests (HTTP/1.1 default, or HTTP/1.0 with
+ * "Connection: keep-alive") until the client closes them or they stay idle for too long.
+ * A blocking origin fetch therefore only parks the virtual thread of the connection
+ * that caused it, and never delays other clients. Virtual threads need Java 21 or later.
+ */
+public class VirtualThreadHttpServer {
+
+    // Limits on the request head, to protect the replica from malformed clients.
+    private static final int MAX_REQUEST_LINE = 8192;
+    private static final int MAX_HEADERS = 100;
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final InetSocketAddress address;
+    private final HttpHandler handler;
+    // Bounds the number of open connections; each connection holds one permit.
+    private final Semaphore connectionPermits;
+    // How long a kept-alive connection may wait for its next request.
+    private final int idleTimeoutMillis;
+
+    private final ExecutorService connectionExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private volatile boolean running;
+
+    public VirtualThreadHttpServer(InetSocketAddress address, HttpHandler handler,
+                                   int maxConnections, int idleTimeoutMillis) {
+        this.address = address;
+        this.handler = handler;
+        this.connectionPermits = new Semaphore(maxConnections);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, 1024);
+        running = true;
+        acceptor = new Thread(this::acceptLoop, "http-acceptor");
+        acceptor.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        connectionExecutor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                connectionPermits.acquire();
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    throw e;
+                }
+                connectionExecutor.execute(() -> {
+                    try {
+                        serve(channel);
+                    } finally {
+                        connectionPermits.release();
+                    }
+                });
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves requests on one connection until either side wants to close it.
+     */
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // The socket adaptor's streams honour SO_TIMEOUT, which gives us the idle timeout.
+            channel.socket().setSoTimeout(idleTimeoutMillis);
+            InputStream in = new BufferedInputStream(channel.socket().getInputStream());
+            OutputStream out = new BufferedOutputStream(channel.socket().getOutputStream());
+            boolean keepAlive = true;
+            while (keepAlive && running) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    break; // client closed the connection
+                }
+                if (requestLine.isEmpty()) {
+                    continue; // tolerate stray CRLF between pipelined requests
+                }
+                String[] parts = requestLine.split(" ");
+                if (parts.length != 3) {
+                    writeError(out, 400);
+                    break;
+                }
+                Headers requestHeaders = readHeaders(in);
+                if (requestHeaders == null) {
+                    writeError(out, 431);
+                    break;
+                }
+                String protocol = parts[2];
+                keepAlive = wantsKeepAlive(protocol, requestHeaders);
+                InputStream body = requestBody(in, requestHeaders);
+                if (body == null) {
+                    writeError(out, 411);
+                    break;
+                }
+                ChannelExchange exchange = new ChannelExchange(channel, parts[0], URI.create(parts[1]),
+                        protocol, requestHeaders, body, out, keepAlive);
+                try {
+                    handler.handle(exchange);
+                } catch (RuntimeException e) {
+                    // A handler bug: answer 500 unless part of the response already went out,
+                    // and close the connection, whose response may be incomplete.
+                    System.err.println("Handler failed for " + parts[1] + ": " + e);
+                    if (!exchange.committed()) {
+                        writeError(out, 500);
+                    }
+                    break;
+                }
+                exchange.close();
+                keepAlive = keepAlive && exchange.isReusable();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // Timeouts, resets and malformed request targets simply end the connection.
+        }
+    }
+
+    private static boolean wantsKeepAlive(String protocol, Headers headers) {
+        String connection = headers.getFirst("Connection");
+        if (connection != null && connection.equalsIgnoreCase("close")) {
+            return false;
+        }
+        if ("HTTP/1.0".equals(protocol)) {
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+        return true;
+    }
+
+    /**
+     * Returns a stream over the request body, or null if the body is chunked (which a
+     * GET-only replica does not accept).
+     */
+    private static InputStream requestBody(InputStream in, Headers headers) {
+        if (headers.containsKey("Transfer-Encoding")) {
+            return null;
+        }
+        String length = headers.getFirst("Content-Length");
+        long remaining = length == null ? 0 : Long.parseLong(length.trim());
+        return new FixedLengthInputStream(in, remaining);
+    }
+
+    private static Headers readHeaders(InputStream in) throws IOException {
+        Headers headers = new Headers();
+        for (int i = 0; i <= MAX_HEADERS; i++) {
+            String line = readLine(in);
+            if (line == null || line.isEmpty()) {
+                return headers;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads one CRLF (or LF) terminated line as ISO-8859-1. Returns null at end of stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            if (sb.length() >= MAX_REQUEST_LINE) {
+                throw new IOException("Request line too long");
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void writeError(OutputStream out, int status) throws IOException {
+        String response = "HTTP/1.1 " + status + " " + reasonPhrase(status) + "\r\n"
+                + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    static String reasonPhrase(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 411: return "Length Required";
+            case 416: return "Range Not Satisfiable";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "Status " + status;
+        }
+    }
+
+    /**
+     * An {@link HttpExchange} bound to one request on a kept-alive socket channel.
+     * The response length follows the HttpExchange contract: a positive value is sent
+     * as Content-Length, 0 means chunked transfer encoding and -1 means no body.
+     */
+    static class ChannelExchange extends HttpExchange {
+        private final SocketChannel channel;
+        private final String method;
+        private final URI uri;
+        private final String protocol;
+        private final Headers requestHeaders;
+        private final Headers responseHeaders = new Headers();
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final boolean keepAlive;
+        private InputStream requestBody;
+        private OutputStream rawOut;
+        private OutputStream responseBody;
+        // Status line and headers not yet written, so they can share a write with the body.
+        private byte[] pendingHead;
+        private int responseCode = -1;
+        private boolean closed;
+
+        // Body streams write through here so the pending head always goes out first.
+        private final OutputStream headFirstOut = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writePendingHead();
+                rawOut.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writePendingHead();
+                rawOut.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writePendingHead();
+                rawOut.flush();
+            }
+        };
+
+        ChannelExchange(SocketChannel channel, String method, URI uri, String protocol,
+                        Headers requestHeaders, InputStream requestBody, OutputStream rawOut,
+                        boolean keepAlive) {
+            this.channel = channel;
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.requestHeaders = requestHeaders;
+            this.requestBody = requestBody;
+            this.rawOut = rawOut;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return method;
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (responseBody == null) {
+                    // The handler never answered; do not leave the client hanging.
+                    sendResponseHeaders(500, -1);
+                }
+                responseBody.close();
+                // Drain any unread request body so the next request starts on a boundary.
+                requestBody.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                responseBody = null;
+            }
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return requestBody;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return responseBody;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            if (responseCode != -1) {
+                throw new IOException("Headers already sent");
+            }
+            responseCode = rCode;
+            boolean noBody = responseLength == -1 || method.equalsIgnoreCase("HEAD")
+                    || rCode == 204 || rCode == 304;
+            responseHeaders.set("Date", ZonedDateTime.now(ZoneOffset.UTC).format(HTTP_DATE));
+            if (!keepAlive) {
+                responseHeaders.set("Connection", "close");
+            }
+            if (responseLength > 0) {
+                responseHeaders.set("Content-Length", Long.toString(responseLength));
+            } else if (responseLength == 0) {
+                responseHeaders.set("Transfer-Encoding", "chunked");
+            } else if (rCode != 304) {
+                responseHeaders.set("Content-Length", "0");
+            }
+
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(rCode).append(' ').append(reasonPhrase(rCode)).append("\r\n");
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    head.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            head.append("\r\n");
+            pendingHead = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+            if (noBody) {
+                responseBody = new FixedLengthOutputStream(headFirstOut, 0);
+            } else if (responseLength == 0) {
+                responseBody = new ChunkedOutputStream(headFirstOut);
+            } else {
+                responseBody = new FixedLengthOutputStream(headFirstOut, responseLength);
+            }
+        }
+
+        // Whether the status line has been written, so a different status can no longer be sent.
+        boolean committed() {
+            return responseCode != -1 && pendingHead == null;
+        }
+
+        private void writePendingHead() throws IOException {
+            if (pendingHead != null) {
+                byte[] head = pendingHead;
+                pendingHead = null;
+                rawOut.write(head);
+            }
+        }
+
+        private FixedLengthOutputStream fixedLengthBody(long count) throws IOException {
+            if (!(responseBody instanceof FixedLengthOutputStream)) {
+                throw new IOException("Direct channel writes need a fixed-length response");
+            }
+            FixedLengthOutputStream body = (FixedLengthOutputStream) responseBody;
+            if (count > body.remaining) {
+                throw new IOException("Response body exceeds Content-Length");
+            }
+            return body;
+        }
+
+        /**
+         * Writes the buffers as (part of) the response body with a single gathering write on
+         * the socket channel, together with the status line and headers if those have not
+         * gone out yet. Direct buffers reach the socket without an intermediate copy. For a
+         * chunked response the buffers are framed as one chunk.
+         */
+        void write(ByteBuffer[] buffers) throws IOException {
+            long bodyBytes = 0;
+            for (ByteBuffer buffer : buffers) {
+                bodyBytes += buffer.remaining();
+            }
+            boolean chunked = responseBody instanceof ChunkedOutputStream;
+            FixedLengthOutputStream fixed = chunked ? null : fixedLengthBody(bodyBytes);
+            if (chunked && bodyBytes == 0) {
+                return; // an empty chunk would end the body
+            }
+            // Anything already buffered on the stream side must precede the channel write.
+            rawOut.flush();
+            ByteBuffer[] gather = new ByteBuffer[buffers.length + (pendingHead != null ? 1 : 0) + (chunked ? 2 : 0)];
+            int i = 0;
+            if (pendingHead != null) {
+                gather[i++] = ByteBuffer.wrap(pendingHead);
+                pendingHead = null;
+            }
+            if (chunked) {
+                gather[i++] = ByteBuffer.wrap((Long.toHexString(bodyBytes) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                gather[gather.length - 1] = ByteBuffer.wrap(CRLF);
+            }
+            System.arraycopy(buffers, 0, gather, i, buffers.length);
+            long total = 0;
+            for (ByteBuffer buffer : gather) {
+                total += buffer.remaining();
+            }
+            long written = 0;
+            while (written < total) {
+                written += channel.write(gather);
+            }
+            if (fixed != null) {
+                fixed.remaining -= bodyBytes;
+            }
+        }
+
+        /**
+         * The connection can carry another request only if the response was framed
+         * completely (e.g. the handler wrote exactly Content-Length bytes).
+         */
+        boolean isReusable() {
+            if (responseBody instanceof FixedLengthOutputStream) {
+                return ((FixedLengthOutputStream) responseBody).remaining == 0;
+            }
+            return responseBody != null;
+        }
+
+        /**
+         * Sends part of a file as (the rest of) the response body with FileChannel.transferTo,
+         * so the bytes go from the page cache to the socket without passing through the heap.
+         */
+        void transferFrom(FileChannel file, long position, long count) throws IOException {
+            FixedLengthOutputStream body = fixedLengthBody(count);
+            // Push out the status line and headers before writing to the channel directly.
+            headFirstOut.flush();
+            long end = position + count;
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent <= 0 && position >= file.size()) {
+                    throw new EOFException("File shorter than expected");
+                }
+                position += sent;
+            }
+            body.remaining -= count;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+        }
+
+        @Override
+        public String getProtocol() {
+            return protocol;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null) {
+                requestBody = i;
+            }
+            if (o != null) {
+                rawOut = o;
+            }
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+
+    // Reads at most a fixed number of bytes from the underlying stream.
+    static class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long remaining) {
+            this.in = in;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+
+    // Writes a body of a declared length; closing flushes but keeps the socket open.
+    static class FixedLengthOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long remaining;
+
+        FixedLengthOutputStream(OutputStream out, long length) {
+            this.out = out;
+            this.remaining = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (remaining <= 0) {
+                throw new IOException("Response body exceeds Content-Length");
+            }
+            out.write(b);
+            remaining--;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > remaining) {
+                throw new IOException("Response body exceeds Content-Length");
+            }
+            out.write(b, off, len);
+            remaining -= len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    // Frames the body with chunked transfer encoding; closing writes the last chunk.
+    static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private boolean finished;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                finished = true;
+                out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            out.flush();
+        }
+    }
+}
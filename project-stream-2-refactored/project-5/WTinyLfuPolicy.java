@@ -0,0 +1,263 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Scan-resistant eviction policy in the style of W-TinyLFU.
+ *
+ * New entries go into a small LRU window (1% of the byte budget). Entries pushed out of
+ * the window enter the main area directly while it has room, and otherwise become
+ * admission candidates. The main area is a segmented LRU: entries hit again while on
+ * probation move to the protected segment (80% of the main area). When space is needed,
+ * the oldest candidate competes with the main area's LRU entry and the one with the lower
+ * estimated access frequency is evicted. Frequencies come from a count-min sketch of
+ * recent accesses that is halved periodically, so popularity also fades. A scan of
+ * one-hit wonders therefore only churns the window and the candidate queue instead of
+ * flushing the hot set. A replaced entry (a refresh or revalidation) keeps its place, and
+ * hits an entry already had elsewhere, e.g. when it is prewarmed, count as accesses.
+ *
+ * Like every EvictionPolicy it is only called under the cache's eviction lock.
+ */
+public class WTinyLfuPolicy implements ContentCache.EvictionPolicy {
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final long windowMaxBytes;
+    private final long mainMaxBytes;
+    private final long protectedMaxBytes;
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    // Insertion order is recency order: the first key is the least recently used.
+    private final LinkedHashMap<String, Long> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> candidates = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> protectedSegment = new LinkedHashMap<>();
+    private long windowBytes;
+    private long mainBytes; // probation + protected
+    private long protectedBytes;
+
+    public WTinyLfuPolicy(long maxBytes) {
+        this.windowMaxBytes = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+        this.mainMaxBytes = maxBytes - windowMaxBytes;
+        this.protectedMaxBytes = mainMaxBytes * PROTECTED_PERCENT / 100;
+    }
+
+    @Override
+    public void onInsert(String key, long weight) {
+        sketch.increment(key);
+        window.put(key, weight);
+        windowBytes += weight;
+        spillWindow();
+        // Candidates only have to compete once the main area is full.
+        String candidate;
+        while ((candidate = first(candidates)) != null && mainBytes + candidates.get(candidate) <= mainMaxBytes) {
+            admit(candidate);
+        }
+        sketch.ensureCapacity(window.size() + candidates.size() + probation.size() + protectedSegment.size());
+    }
+
+    @Override
+    public void onAccess(String key) {
+        sketch.increment(key);
+        Long weight;
+        if ((weight = window.remove(key)) != null) {
+            window.put(key, weight);
+        } else if ((weight = protectedSegment.remove(key)) != null) {
+            protectedSegment.put(key, weight);
+        } else if ((weight = probation.remove(key)) != null) {
+            promote(key, weight);
+        } else if (candidates.containsKey(key)) {
+            // Hit again while waiting for admission: it has earned a place in the main area.
+            admit(key);
+        }
+    }
+
+    @Override
+    public void onUpdate(String key, long weight) {
+        Long previous;
+        if ((previous = window.replace(key, weight)) != null) {
+            windowBytes += weight - previous;
+            spillWindow();
+        } else if ((previous = protectedSegment.replace(key, weight)) != null) {
+            protectedBytes += weight - previous;
+            mainBytes += weight - previous;
+            demoteProtected();
+        } else if ((previous = probation.replace(key, weight)) != null) {
+            mainBytes += weight - previous;
+        } else if (candidates.replace(key, weight) == null) {
+            onInsert(key, weight);
+        }
+    }
+
+    @Override
+    public void onHits(String key, long hits) {
+        // The counters saturate at 15.
+        for (long i = Math.min(hits, 15); i > 0; i--) {
+            sketch.increment(key);
+        }
+    }
+
+    @Override
+    public void onRemove(String key) {
+        Long weight;
+        if ((weight = window.remove(key)) != null) {
+            windowBytes -= weight;
+        } else if ((weight = protectedSegment.remove(key)) != null) {
+            protectedBytes -= weight;
+            mainBytes -= weight;
+        } else if ((weight = probation.remove(key)) != null) {
+            mainBytes -= weight;
+        } else {
+            candidates.remove(key);
+        }
+    }
+
+    /**
+     * Resolves one admission decision: the oldest candidate is admitted to probation if it
+     * is accessed more often than the main area's LRU entry, which is then the victim;
+     * otherwise the candidate itself is. Ties go to the incumbent.
+     */
+    @Override
+    public String victim() {
+        String mainVictim = probation.isEmpty() ? first(protectedSegment) : first(probation);
+        String candidate = first(candidates);
+        if (candidate == null) {
+            return mainVictim != null ? mainVictim : first(window);
+        }
+        if (mainVictim == null) {
+            return candidate;
+        }
+        if (sketch.frequency(candidate) > sketch.frequency(mainVictim)) {
+            admit(candidate);
+            return mainVictim;
+        }
+        return candidate;
+    }
+
+    // Estimated recent access count of a key, for diagnostics and the benchmark.
+    int frequency(String key) {
+        return sketch.frequency(key);
+    }
+
+    private void admit(String candidate) {
+        long weight = candidates.remove(candidate);
+        probation.put(candidate, weight);
+        mainBytes += weight;
+    }
+
+    private void promote(String key, long weight) {
+        protectedSegment.put(key, weight);
+        protectedBytes += weight;
+        demoteProtected();
+    }
+
+    // Moves the window's oldest entries to the candidates until it fits again.
+    private void spillWindow() {
+        while (windowBytes > windowMaxBytes && !window.isEmpty()) {
+            String oldest = first(window);
+            long oldestWeight = window.remove(oldest);
+            windowBytes -= oldestWeight;
+            candidates.put(oldest, oldestWeight);
+        }
+    }
+
+    // Moves the protected segment's oldest entries back to probation until it fits again.
+    private void demoteProtected() {
+        while (protectedBytes > protectedMaxBytes && protectedSegment.size() > 1) {
+            String oldest = first(protectedSegment);
+            long oldestWeight = protectedSegment.remove(oldest);
+            protectedBytes -= oldestWeight;
+            probation.put(oldest, oldestWeight);
+        }
+    }
+
+    private static String first(LinkedHashMap<String, Long> segment) {
+        Iterator<String> it = segment.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * Count-min sketch with four 4-bit counters per key, sixteen counters to a long. Once
+     * the number of increments reaches ten times the table size every counter is halved,
+     * which keeps the estimates about recent traffic.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final long ONE_MASK = 0x1111111111111111L;
+        private static final int MIN_TABLE_SIZE = 64;
+
+        private long[] table = new long[MIN_TABLE_SIZE];
+        private int sampleSize = 10 * MIN_TABLE_SIZE;
+        private int additions;
+
+        /**
+         * Grows the table for the number of tracked entries. Growing starts the counts over,
+         * so the table is only ever doubled.
+         */
+        void ensureCapacity(int entries) {
+            if (entries <= table.length || table.length >= (1 << 30)) {
+                return;
+            }
+            table = new long[Math.min(Integer.highestOneBit(entries - 1) << 1, 1 << 30)];
+            sampleSize = (int) Math.min(10L * table.length, Integer.MAX_VALUE);
+            additions = 0;
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xF);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int index, int counter) {
+            int offset = counter << 2;
+            long mask = 0xFL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            int odd = 0;
+            for (int i = 0; i < table.length; i++) {
+                odd += Long.bitCount(table[i] & ONE_MASK);
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions = (additions - (odd >>> 2)) >>> 1;
+        }
+
+        private int indexOf(int item, int i) {
+            long hash = (item + SEEDS[i]) * SEEDS[i];
+            hash += hash >>> 32;
+            return (int) hash & (table.length - 1);
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}